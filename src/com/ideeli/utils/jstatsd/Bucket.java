@@ -6,83 +6,748 @@ package com.ideeli.utils.jstatsd;
 
 import java.util.HashMap;
 import java.util.LinkedList;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
+ * Concurrent maps, so they can be walked (weakly consistent) while samples
+ * keep coming in. Counters and gauges are a cell per key updated with a
+ * single atomic operation, timer sample lists are guarded by their own
+ * monitor.
+ *
+ * With an {@link OffHeapStore} samples go there instead, and the map getters
+ * return heap copies of it.
+ *
+ * With a reservoir size timers go on a bounded {@link Reservoir} per key
+ * instead of a list, and getTimeHashes returns copies of the kept samples.
+ *
+ * With packed timers samples go on the key's chain of a {@link PackedTimers}
+ * instead of a list, and getTimeHashes returns copies of them.
+ *
+ * With a high water mark the heap used is estimated as samples come in, and
+ * once over it compact() folds the longest timer lists into a reservoir per
+ * key, emptying them. settle() puts what arrived since on the reservoirs
+ * before flushing, so each key is written once for the whole interval.
  *
  * @author marc
  */
 public class Bucket {
-    HashMap<String, LinkedList<Long>> TimeHashes=new HashMap<String, LinkedList<Long>>();
-    HashMap<String, Long> CountHashes=new HashMap< String, Long>();
-    HashMap<String, LinkedList<Long>> GaugeHashes=new HashMap<String, LinkedList<Long>>();
+
+    /**
+     * A gauge on an interval: the value it was last set to plus what was
+     * added since, or only what was added if it was never set.
+     */
+    public static class Gauge {
+
+        final AtomicLong value = new AtomicLong();
+        volatile boolean set = false;
+
+        public void set(long value) {
+            this.value.set(value);
+            set = true;
+        }
+
+        public void add(long delta) {
+            value.addAndGet(delta);
+        }
+
+        public long get() {
+            return value.get();
+        }
+
+        /**
+         * False if it was only added to, then get() is a delta.
+         */
+        public boolean isSet() {
+            return set;
+        }
+
+        /**
+         * Value once applied over the previous one, null if there's none.
+         */
+        public long resolve(Long previous) {
+            return set || previous == null ? value.get() : previous + value.get();
+        }
+
+        /**
+         * Applies another interval's gauge after this one.
+         */
+        public void merge(Gauge other) {
+            if (other.isSet()) {
+                set(other.get());
+            } else {
+                add(other.get());
+            }
+        }
+    }
+    /**
+     * Receives a bucket's keys one at a time, see visitKeys.
+     */
+    public interface KeyVisitor {
+
+        void counter(String name, long sum);
+
+        /**
+         * @param set false if it was only added to, value is then a delta.
+         */
+        void gauge(String name, long value, boolean set);
+
+        void timer(String name, long samples);
+    }
+    ConcurrentHashMap<String, LinkedList<Long>> TimeHashes=new ConcurrentHashMap<String, LinkedList<Long>>();
+    ConcurrentHashMap<String, AtomicLong> CountHashes=new ConcurrentHashMap<String, AtomicLong>();
+    ConcurrentHashMap<String, Gauge> GaugeHashes=new ConcurrentHashMap<String, Gauge>();
+    final KeyAdmission admission;
+    // Null unless aggregating off heap
+    OffHeapStore store;
+    // Null unless timers are kept on reservoirs, or were compacted
+    volatile ConcurrentHashMap<String, Reservoir> Reservoirs;
+    int reservoirSize = 0;
+    // Null unless timers are packed
+    PackedTimers packed;
+    // Rough heap cost, only tracked with a high water mark
+    static final int KEY_BYTES = 64;
+    static final int SAMPLE_BYTES = 40;
+    public static final int SUMMARY_SAMPLES = 1024;
+    long highWater = 0;
+    int summarySize = SUMMARY_SAMPLES;
+    final AtomicLong approxBytes = new AtomicLong();
+    volatile long compactAt = Long.MAX_VALUE;
+
+    public Bucket() {
+        this(new KeyAdmission());
+    }
+
+    public Bucket(KeyAdmission admission) {
+        this.admission = admission;
+    }
+
+    /**
+     * Bucket sized up front for the number of keys expected on each type.
+     */
+    public Bucket(KeyAdmission admission, int counters, int gauges, int timers) {
+        this.admission = admission;
+        CountHashes = new ConcurrentHashMap<String, AtomicLong>(capacity(counters));
+        GaugeHashes = new ConcurrentHashMap<String, Gauge>(capacity(gauges));
+        TimeHashes = new ConcurrentHashMap<String, LinkedList<Long>>(capacity(timers));
+    }
+
+    /**
+     * Bucket aggregating on an off heap store.
+     */
+    public Bucket(KeyAdmission admission, OffHeapStore store) {
+        this.admission = admission;
+        this.store = store;
+    }
+
+    static int capacity(int keys) {
+        return Math.max(16, (int) (keys / 0.75f) + 1);
+    }
+
+    public KeyAdmission getAdmission() {
+        return admission;
+    }
+
+    public OffHeapStore getStore() {
+        return store;
+    }
+
+    /**
+     * Keeps at most size samples per timer key from now on, 0 keeps them all.
+     * Only for heap buckets, set before any sample arrives.
+     */
+    public void setReservoirSize(int size) {
+        reservoirSize = size;
+        Reservoirs = size > 0 && store == null ? new ConcurrentHashMap<String, Reservoir>() : null;
+    }
+
+    /**
+     * Packs timer samples from now on, unless they go on reservoirs. Only for
+     * heap buckets, set before any sample arrives.
+     */
+    public void setPackedTimers(boolean on) {
+        packed = on && store == null && reservoirSize == 0 ? new PackedTimers() : null;
+    }
+
+    /**
+     * Packed timer samples, or null if they go on lists.
+     */
+    public PackedTimers getPacked() {
+        return packed;
+    }
+
+    public int getReservoirSize() {
+        return reservoirSize;
+    }
+
+    /**
+     * Starts estimating the heap used, so compact() can be called once over
+     * bytes. Only for heap buckets, set before any sample arrives.
+     *
+     * @param summarySize samples kept per compacted timer key.
+     */
+    public void setHighWater(long bytes, int summarySize) {
+        highWater = bytes;
+        this.summarySize = summarySize;
+        compactAt = bytes > 0 && store == null ? bytes : Long.MAX_VALUE;
+    }
+
+    public long getApproxBytes() {
+        return approxBytes.get();
+    }
+
+    public boolean isOverHighWater() {
+        return approxBytes.get() >= compactAt;
+    }
+
+    private void account(long bytes) {
+        if (highWater > 0) {
+            approxBytes.addAndGet(bytes);
+        }
+    }
+
+    /**
+     * Timer reservoirs, or null if timers keep all their samples and were
+     * never compacted.
+     */
+    public Map<String, Reservoir> getReservoirs() {
+        return Reservoirs;
+    }
 
     public long getLastFlush() {
         return lastFlush;
     }
-    public HashMap<String, LinkedList<Long>> getTimeHashes() {
+    /**
+     * Walks the live keys of the given types without copying them, so it's
+     * only weakly consistent with what's being ingested. Timers report every
+     * sample seen, not just the ones kept. Off heap, ingest only waits for the
+     * part of the store being read.
+     */
+    public void visitKeys(KeyVisitor visitor, Set<Type> types) {
+        if (store != null) {
+            store.visitKeys(visitor, types);
+            return;
+        }
+        if (types.contains(Type.c)) {
+            for (Map.Entry<String, AtomicLong> e : CountHashes.entrySet()) {
+                visitor.counter(e.getKey(), e.getValue().get());
+            }
+        }
+        if (types.contains(Type.g)) {
+            for (Map.Entry<String, Gauge> e : GaugeHashes.entrySet()) {
+                visitor.gauge(e.getKey(), e.getValue().get(), e.getValue().isSet());
+            }
+        }
+        if (!types.contains(Type.ms)) {
+            return;
+        }
+        if (packed != null) {
+            for (Map.Entry<String, PackedTimers.Chain> e : packed.getChains().entrySet()) {
+                visitor.timer(e.getKey(), e.getValue().getCount());
+            }
+            return;
+        }
+        Map<String, Reservoir> reservoirs = Reservoirs;
+        if (reservoirs != null) {
+            for (Map.Entry<String, Reservoir> e : reservoirs.entrySet()) {
+                long samples;
+                synchronized (e.getValue()) {
+                    samples = e.getValue().getCount();
+                }
+                // Compacted keys may have a list too
+                LinkedList<Long> lst = TimeHashes.get(e.getKey());
+                if (lst != null) {
+                    synchronized (lst) {
+                        samples += lst.size();
+                    }
+                }
+                visitor.timer(e.getKey(), samples);
+            }
+        }
+        for (Map.Entry<String, LinkedList<Long>> e : TimeHashes.entrySet()) {
+            if (reservoirs != null && reservoirs.containsKey(e.getKey())) {
+                continue;
+            }
+            LinkedList<Long> lst = e.getValue();
+            synchronized (lst) {
+                visitor.timer(e.getKey(), lst.size());
+            }
+        }
+    }
+
+    public Map<String, LinkedList<Long>> getTimeHashes() {
+        if (store != null) {
+            return store.timers();
+        }
+        if (packed != null) {
+            return packed.copy();
+        }
+        Map<String, Reservoir> reservoirs = Reservoirs;
+        if (reservoirs != null) {
+            Map<String, LinkedList<Long>> copy = new HashMap<String, LinkedList<Long>>();
+            for (Map.Entry<String, Reservoir> e : reservoirs.entrySet()) {
+                LinkedList<Long> lst = new LinkedList<Long>();
+                synchronized (e.getValue()) {
+                    for (long value : e.getValue().sorted()) {
+                        lst.add(value);
+                    }
+                }
+                copy.put(e.getKey(), lst);
+            }
+            // Compacted buckets keep lists too
+            for (Map.Entry<String, LinkedList<Long>> e : TimeHashes.entrySet()) {
+                LinkedList<Long> lst = copy.get(e.getKey());
+                if (lst == null) {
+                    lst = new LinkedList<Long>();
+                    copy.put(e.getKey(), lst);
+                }
+                synchronized (e.getValue()) {
+                    lst.addAll(e.getValue());
+                }
+            }
+            return copy;
+        }
+        return TimeHashes;
+    }
+
+    /**
+     * Timer samples still on lists, the ones on reservoirs left out. Packed
+     * ones are copied.
+     */
+    public Map<String, LinkedList<Long>> getTimeLists() {
+        if (store != null) {
+            return store.timers();
+        }
+        if (packed != null) {
+            return packed.copy();
+        }
         return TimeHashes;
     }
     
-    public HashMap<String, LinkedList<Long>> getGaugeHashes() {
+    public Map<String, Gauge> getGaugeHashes() {
+        if (store != null) {
+            return store.gauges();
+        }
         return GaugeHashes;
     }
 
-    public HashMap<String, Long> getCountHashes() {
+    public Map<String, AtomicLong> getCountHashes() {
+        if (store != null) {
+            return store.counters();
+        }
         return CountHashes;
     }    
     
+    /**
+     * Distinct keys on all the types.
+     */
+    public int getKeyCount() {
+        if (store != null) {
+            return store.size();
+        }
+        return CountHashes.size() + GaugeHashes.size() + getKeyCount(Type.ms);
+    }
+
+    public int getKeyCount(Type type) {
+        if (store != null) {
+            return store.size(type);
+        }
+        switch (type) {
+            case c:
+                return CountHashes.size();
+            case g:
+                return GaugeHashes.size();
+            case ms:
+            default:
+                Map<String, Reservoir> reservoirs = Reservoirs;
+                return (reservoirs != null ? reservoirs.size() : 0) + (packed != null ? packed.size() : 0) + TimeHashes.size();
+        }
+    }
+
+    /**
+     * Folds every timer list with more samples than a reservoir would hold
+     * into the key's reservoir, and empties it. Lists of keys already
+     * compacted are always folded. Safe while samples keep coming in.
+     *
+     * @return timer keys compacted.
+     */
+    public int compact() {
+        if (store != null || reservoirSize > 0 || packed != null) {
+            // Already bounded, or small enough
+            compactAt = Long.MAX_VALUE;
+            return 0;
+        }
+        int keys = 0;
+        for (Map.Entry<String, LinkedList<Long>> e : TimeHashes.entrySet()) {
+            LinkedList<Long> lst = e.getValue();
+            Reservoir res = Reservoirs != null ? Reservoirs.get(e.getKey()) : null;
+            synchronized (lst) {
+                int n = lst.size();
+                if (n == 0 || (res == null && (long) n * SAMPLE_BYTES <= summarySize * 8L)) {
+                    continue;
+                }
+                if (res == null) {
+                    res = reservoir(e.getKey(), false);
+                }
+                synchronized (res) {
+                    for (Long value : lst) {
+                        res.add(value);
+                    }
+                }
+                lst.clear();
+                account(-(long) n * SAMPLE_BYTES);
+                keys++;
+            }
+        }
+        // Not again until it grows a quarter, in case keys and gauges are
+        // what fills it
+        compactAt = Math.max(highWater, approxBytes.get() + highWater / 4);
+        return keys;
+    }
+
+    /**
+     * Moves timer lists of compacted keys onto their reservoirs. Called on a
+     * bucket no longer receiving samples, before flushing it.
+     */
+    public void settle() {
+        Map<String, Reservoir> reservoirs = Reservoirs;
+        if (store != null || reservoirs == null || reservoirs.isEmpty()) {
+            return;
+        }
+        for (Map.Entry<String, LinkedList<Long>> e : TimeHashes.entrySet()) {
+            Reservoir res = reservoirs.get(e.getKey());
+            if (res == null) {
+                continue;
+            }
+            LinkedList<Long> lst = e.getValue();
+            synchronized (lst) {
+                synchronized (res) {
+                    for (Long value : lst) {
+                        res.add(value);
+                    }
+                }
+            }
+            TimeHashes.remove(e.getKey());
+        }
+    }
+
     public void cleanup() {
-        TimeHashes = new HashMap<String, LinkedList<Long>>();
-        CountHashes = new HashMap< String, Long>();
-        GaugeHashes = new HashMap<String, LinkedList<Long>>();
+        if (store != null) {
+            store.reset();
+            admission.reset();
+            return;
+        }
+        if (packed != null) {
+            packed.reset();
+        }
+        // Next interval will most likely see the same keys, so no rehashing
+        TimeHashes = new ConcurrentHashMap<String, LinkedList<Long>>(capacity(TimeHashes.size()));
+        CountHashes = new ConcurrentHashMap<String, AtomicLong>(capacity(CountHashes.size()));
+        GaugeHashes = new ConcurrentHashMap<String, Gauge>(capacity(GaugeHashes.size()));
+        if (reservoirSize > 0) {
+            Reservoirs = new ConcurrentHashMap<String, Reservoir>(capacity(Reservoirs.size()));
+        } else {
+            Reservoirs = null;
+        }
+        approxBytes.set(0);
+        compactAt = highWater > 0 ? highWater : Long.MAX_VALUE;
+        admission.reset();
+    }
+
+    /**
+     * Makes every gauge absolute and carries gauges over intervals: relative
+     * ones are applied over their value on last, results are kept on last,
+     * and gauges on last this bucket didn't get are added with that value,
+     * through admission like any other key.
+     * Called on a bucket no longer receiving samples, before flushing it.
+     */
+    public void resolveGauges(RetainedGauges last) {
+        Map<String, Gauge> gauges = getGaugeHashes();
+        for (Map.Entry<String, Gauge> e : gauges.entrySet()) {
+            long value = e.getValue().resolve(last.get(e.getKey()));
+            last.put(e.getKey(), value);
+            if (store != null) {
+                store.addGauge(e.getKey(), value, false, null);
+            } else {
+                e.getValue().set(value);
+            }
+        }
+        for (Map.Entry<String, Long> e : last.idle(gauges.keySet()).entrySet()) {
+            addGauge(e.getKey(), e.getValue(), false, true);
+        }
     }
 
+    /**
+     * Start of the interval, what counter rates are computed over.
+     */
     public void setFlushTime(long currentFlush) {
         lastFlush=currentFlush;
+        flushEnd = 0;
+    }
+
+    /**
+     * End of the interval, when the bucket stopped receiving samples.
+     */
+    public void setFlushEnd(long flushEnd) {
+        this.flushEnd = flushEnd;
+    }
+
+    /**
+     * @return the end of the interval, or now if not set.
+     */
+    public long getFlushEnd() {
+        return flushEnd > 0 ? flushEnd : System.currentTimeMillis();
     }
     
     public enum Type { ms, c, g };
     
     long lastFlush = System.currentTimeMillis();
+    volatile long flushEnd = 0;
 
     public void add(String name, long value, String type) {
         add(name, value, Type.valueOf(type));
     }
     
     public void add(String name, long value, Type type) {
-        HashMap<String, LinkedList<Long>> currentHash;
-        switch (type) {
-            case ms:
-            case g:
-                if (type == Type.ms) {
-                    currentHash = TimeHashes;
-                } else {
-                    currentHash = GaugeHashes;
-                }
-                LinkedList<Long> lst;
-                synchronized (currentHash) {
-                    lst = currentHash.get(name);
+        add(name, value, type, true);
+    }
+
+    /**
+     * Adds jstatsd's own metrics, skipping admission control.
+     */
+    public void addInternal(String name, long value, Type type) {
+        add(name, value, type, false);
+    }
+
+    /**
+     * Relative gauge update, "name:+N|g" or "name:-N|g".
+     */
+    public void addGaugeDelta(String name, long delta) {
+        addGauge(name, delta, true, true);
+    }
+
+    /**
+     * Adds everything on another bucket, names prefixed. Skips admission
+     * control, the keys already went through it.
+     */
+    public void merge(Bucket from, String prefix) {
+        for (Map.Entry<String, AtomicLong> e : from.getCountHashes().entrySet()) {
+            add(prefix + e.getKey(), e.getValue().get(), Type.c, false);
+        }
+        for (Map.Entry<String, Gauge> e : from.getGaugeHashes().entrySet()) {
+            addGauge(prefix + e.getKey(), e.getValue().get(), !e.getValue().isSet(), false);
+        }
+        if (store != null) {
+            for (Map.Entry<String, LinkedList<Long>> e : from.getTimeHashes().entrySet()) {
+                for (Long value : e.getValue()) {
+                    store.add(prefix + e.getKey(), value, Type.ms, null);
+                }
+            }
+            return;
+        }
+        if (reservoirSize == 0 && packed == null) {
+            mergeSamples(from.getTimeLists(), TimeHashes, prefix);
+        } else {
+            for (Map.Entry<String, LinkedList<Long>> e : from.getTimeLists().entrySet()) {
+                LinkedList<Long> samples = e.getValue();
+                synchronized (samples) {
+                    for (Long value : samples) {
+                        add(prefix + e.getKey(), value, Type.ms, false);
+                    }
+                }
+            }
+        }
+        if (from.getReservoirs() != null) {
+            for (Map.Entry<String, Reservoir> e : from.getReservoirs().entrySet()) {
+                Reservoir res = reservoir(prefix + e.getKey(), false);
+                Reservoir other = e.getValue();
+                synchronized (other) {
+                    synchronized (res) {
+                        res.merge(other);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds timer samples summarized on a reservoir elsewhere, so count, sum,
+     * min, max and std stay exact. Off heap buckets only take the kept
+     * samples.
+     */
+    public void mergeReservoir(String name, Reservoir other) {
+        if (store != null) {
+            for (long value : other.sorted()) {
+                store.add(name, value, Type.ms, admission);
+            }
+            return;
+        }
+        Reservoir res = reservoir(name, true);
+        if (res != null) {
+            synchronized (res) {
+                res.merge(other);
+            }
+        }
+    }
+
+    /**
+     * @return the key's reservoir, or null if not admitted.
+     */
+    private Reservoir reservoir(String name, boolean admit) {
+        if (Reservoirs == null) {
+            synchronized (this) {
+                if (Reservoirs == null) {
+                    Reservoirs = new ConcurrentHashMap<String, Reservoir>();
+                }
+            }
+        }
+        ConcurrentHashMap<String, Reservoir> reservoirs = Reservoirs;
+        Reservoir res = reservoirs.get(name);
+        if (res == null) {
+            if (admit && admission.rejects(name)) {
+                return null;
+            }
+            synchronized (reservoirs) {
+                res = reservoirs.get(name);
+                if (res == null) {
+                    if (admit && !admission.admit(name)) {
+                        return null;
+                    }
+                    res = new Reservoir(reservoirSize > 0 ? reservoirSize : summarySize);
+                    reservoirs.put(name, res);
+                    account(KEY_BYTES + 2 * name.length() + res.getCapacity() * 8L);
+                }
+            }
+        }
+        return res;
+    }
+
+    private void mergeSamples(Map<String, LinkedList<Long>> from, ConcurrentHashMap<String, LinkedList<Long>> to, String prefix) {
+        for (Map.Entry<String, LinkedList<Long>> e : from.entrySet()) {
+            String name = prefix + e.getKey();
+            LinkedList<Long> lst = to.get(name);
+            if (lst == null) {
+                synchronized (to) {
+                    lst = to.get(name);
                     if (lst == null) {
                         lst = new LinkedList<Long>();
-                        currentHash.put(name, lst);
+                        to.put(name, lst);
+                        account(KEY_BYTES + 2 * name.length());
                     }
                 }
-                lst.add(value);
-                Logger.getLogger(Jstatsd.class.getName()).log(Level.FINEST, "Type:"+type+" #bukets:"+currentHash.size()+" Bucket \""+name+"\" size:"+lst.size());
+            }
+            LinkedList<Long> samples = e.getValue();
+            synchronized (samples) {
+                synchronized (lst) {
+                    lst.addAll(samples);
+                }
+                account((long) samples.size() * SAMPLE_BYTES);
+            }
+        }
+    }
+
+    void add(String name, long value, Type type, boolean admit) {
+        if (type == Type.g) {
+            addGauge(name, value, false, admit);
+            return;
+        }
+        if (store != null) {
+            store.add(name, value, type, admit ? admission : null);
+            return;
+        }
+        if (type == Type.ms && reservoirSize > 0) {
+            Reservoir res = reservoir(name, admit);
+            if (res != null) {
+                synchronized (res) {
+                    res.add(value);
+                }
+            }
+            return;
+        }
+        if (type == Type.ms && packed != null) {
+            packed.add(name, value, admit ? admission : null);
+            return;
+        }
+        switch (type) {
+            case ms:
+                LinkedList<Long> lst = TimeHashes.get(name);
+                if (lst == null) {
+                    if (admit && admission.rejects(name)) {
+                        return;
+                    }
+                    synchronized (TimeHashes) {
+                        lst = TimeHashes.get(name);
+                        if (lst == null) {
+                            if (admit && !admission.admit(name)) {
+                                return;
+                            }
+                            lst = new LinkedList<Long>();
+                            TimeHashes.put(name, lst);
+                            account(KEY_BYTES + 2 * name.length());
+                        }
+                    }
+                }
+                synchronized (lst) {
+                    lst.add(value);
+                }
+                account(SAMPLE_BYTES);
+                Logger.getLogger(Jstatsd.class.getName()).log(Level.FINEST, "Type:"+type+" #bukets:"+TimeHashes.size()+" Bucket \""+name+"\" size:"+lst.size());
                 break;
             case c:
-                synchronized (CountHashes) {
-                    if (!CountHashes.containsKey(name)) {
-                        CountHashes.put(name, value);
-                    } else {
-                        CountHashes.put(name, CountHashes.get(name).longValue() + value);
+                AtomicLong cell = CountHashes.get(name);
+                if (cell == null) {
+                    if (admit && admission.rejects(name)) {
+                        return;
+                    }
+                    synchronized (CountHashes) {
+                        cell = CountHashes.get(name);
+                        if (cell == null) {
+                            if (admit && !admission.admit(name)) {
+                                return;
+                            }
+                            cell = new AtomicLong();
+                            CountHashes.put(name, cell);
+                            account(KEY_BYTES + 2 * name.length());
+                        }
                     }
                 }
-                Logger.getLogger(Jstatsd.class.getName()).log(Level.FINEST, "Type:"+type+" #bukets:"+CountHashes.size()+" Bucket \""+name+"\" value:"+CountHashes.get(name).longValue());
+                long sum = cell.addAndGet(value);
+                Logger.getLogger(Jstatsd.class.getName()).log(Level.FINEST, "Type:"+type+" #bukets:"+CountHashes.size()+" Bucket \""+name+"\" value:"+sum);
                 break;
             default:
         }
     }
+
+    void addGauge(String name, long value, boolean delta, boolean admit) {
+        if (store != null) {
+            store.addGauge(name, value, delta, admit ? admission : null);
+            return;
+        }
+        Gauge gauge = GaugeHashes.get(name);
+        if (gauge == null) {
+            if (admit && admission.rejects(name)) {
+                return;
+            }
+            synchronized (GaugeHashes) {
+                gauge = GaugeHashes.get(name);
+                if (gauge == null) {
+                    if (admit && !admission.admit(name)) {
+                        return;
+                    }
+                    gauge = new Gauge();
+                    GaugeHashes.put(name, gauge);
+                    account(KEY_BYTES + 2 * name.length());
+                }
+            }
+        }
+        if (delta) {
+            gauge.add(value);
+        } else {
+            gauge.set(value);
+        }
+    }
 }
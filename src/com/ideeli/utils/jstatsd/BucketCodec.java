@@ -0,0 +1,364 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.ideeli.utils.jstatsd;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compact binary form of a bucket's state, for a whole flush interval. Used to
+ * relay buckets between jstatsd's and to archive them on disk.
+ *
+ * Everything needed to merge it exactly is kept: counter sums, gauges (and
+ * whether they were set or only added to) and every timer sample, so
+ * percentiles computed after merging are the same as if all the samples had
+ * reached the same node. Timers on reservoirs go with their exact count, sum,
+ * sum of squares, min and max, besides the kept samples.
+ *
+ * Frames belong to a stream (a connection, a file) and an instance of this
+ * class keeps the stream state on each end: metric names are sent once and
+ * then referenced by id, and timestamps are deltas from the previous frame.
+ * Numbers are varints, signed ones zigzag encoded.
+ *
+ * <pre>
+ * 'B' frame: type(1) flags(1) timestamp_delta newNames [new name]* counters gauges timers
+ *   flags: RESET, the receiver must forget the names and last timestamp first
+ *          GAUGE_CELLS, gauges come as cells (older frames have sample lists)
+ *          RESERVOIRS, reservoirs follow the timers
+ *   new name: shared_prefix_with_previous suffix_length suffix(UTF-8)
+ *   counters: n [id sum]*n
+ *   gauges: n [id set(1 or 0, only added to) value]*n
+ *   timers: n [id samples first_sample [delta]*(samples-1)]*n
+ *           samples sorted, so deltas are never negative.
+ *   reservoirs: n [id count sum sum_of_squares(double bits) min max samples first_sample [delta]*(samples-1)]*n
+ * 'L' frame: type(1) UTF-8 Graphite plaintext lines
+ * </pre>
+ *
+ * @author marc
+ */
+public class BucketCodec {
+
+    public static final byte BUCKET = 'B';
+    public static final byte LINES = 'L';
+    static final int RESET = 1;
+    static final int GAUGE_CELLS = 2;
+    static final int RESERVOIRS = 4;
+    // Dictionary is restarted past this, so key churn can't grow it forever
+    static final int MAX_NAMES = 1 << 20;
+    // Encoding state
+    HashMap<String, Integer> ids = new HashMap<String, Integer>();
+    int nextId = 0;
+    // Decoding state
+    ArrayList<String> names = new ArrayList<String>();
+    long lastTimestamp = 0;
+    boolean reset = true;
+
+    /**
+     * Encodes a bucket as the next frame of this stream.
+     */
+    public synchronized byte[] encode(Bucket bucket, long timestamp) {
+        Map<String, AtomicLong> counters = bucket.getCountHashes();
+        Map<String, Bucket.Gauge> gauges = bucket.getGaugeHashes();
+        Map<String, LinkedList<Long>> timers = bucket.getTimeLists();
+        Map<String, Reservoir> reservoirs = bucket.getReservoirs();
+        if (reservoirs == null) {
+            reservoirs = new HashMap<String, Reservoir>();
+        }
+        // Late samples may still add keys, so only what's here now is sent
+        String[] counterNames = counters.keySet().toArray(new String[0]);
+        String[] gaugeNames = gauges.keySet().toArray(new String[0]);
+        String[] timerNames = timers.keySet().toArray(new String[0]);
+        String[] reservoirNames = reservoirs.keySet().toArray(new String[0]);
+        if (ids.size() + counterNames.length + gaugeNames.length + timerNames.length + reservoirNames.length > MAX_NAMES) {
+            ids.clear();
+            nextId = 0;
+            reset = true;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream(64 + 8 * (counterNames.length + gaugeNames.length + timerNames.length));
+        out.write(BUCKET);
+        out.write((reset ? RESET : 0) | GAUGE_CELLS | RESERVOIRS);
+        if (reset) {
+            lastTimestamp = 0;
+            reset = false;
+        }
+        writeSigned(out, timestamp - lastTimestamp);
+        lastTimestamp = timestamp;
+
+        ArrayList<String> newNames = new ArrayList<String>();
+        collectNew(counterNames, newNames);
+        collectNew(gaugeNames, newNames);
+        collectNew(timerNames, newNames);
+        collectNew(reservoirNames, newNames);
+        String[] sorted = newNames.toArray(new String[newNames.size()]);
+        Arrays.sort(sorted);
+        writeVar(out, sorted.length);
+        byte[] previous = new byte[0];
+        for (String name : sorted) {
+            byte[] bytes = utf8(name);
+            int shared = 0;
+            int max = Math.min(previous.length, bytes.length);
+            while (shared < max && previous[shared] == bytes[shared]) {
+                shared++;
+            }
+            writeVar(out, shared);
+            writeVar(out, bytes.length - shared);
+            out.write(bytes, shared, bytes.length - shared);
+            ids.put(name, nextId++);
+            previous = bytes;
+        }
+
+        writeVar(out, counterNames.length);
+        for (String name : counterNames) {
+            writeVar(out, ids.get(name));
+            writeSigned(out, counters.get(name).get());
+        }
+        writeVar(out, gaugeNames.length);
+        for (String name : gaugeNames) {
+            Bucket.Gauge gauge = gauges.get(name);
+            writeVar(out, ids.get(name));
+            out.write(gauge.isSet() ? 1 : 0);
+            writeSigned(out, gauge.get());
+        }
+        writeSamples(out, timerNames, timers);
+        writeReservoirs(out, reservoirNames, reservoirs);
+        return out.toByteArray();
+    }
+
+    private void collectNew(String[] keys, ArrayList<String> newNames) {
+        for (String name : keys) {
+            if (!ids.containsKey(name)) {
+                // Reserve it so it's not added twice
+                ids.put(name, -1);
+                newNames.add(name);
+            }
+        }
+    }
+
+    private void writeSamples(ByteArrayOutputStream out, String[] keys, Map<String, LinkedList<Long>> hash) {
+        writeVar(out, keys.length);
+        for (String name : keys) {
+            LinkedList<Long> lst = hash.get(name);
+            long[] samples;
+            synchronized (lst) {
+                samples = new long[lst.size()];
+                int i = 0;
+                for (Long value : lst) {
+                    samples[i++] = value;
+                }
+            }
+            Arrays.sort(samples);
+            writeVar(out, ids.get(name));
+            writeSorted(out, samples);
+        }
+    }
+
+    private void writeReservoirs(ByteArrayOutputStream out, String[] keys, Map<String, Reservoir> reservoirs) {
+        writeVar(out, keys.length);
+        for (String name : keys) {
+            Reservoir res = reservoirs.get(name);
+            long[] samples;
+            synchronized (res) {
+                samples = res.sorted();
+                writeVar(out, ids.get(name));
+                writeVar(out, res.getCount());
+                writeSigned(out, res.getSum());
+                writeVar(out, Double.doubleToLongBits(res.getSumSquares()));
+                writeSigned(out, res.getMin());
+                writeSigned(out, res.getMax());
+            }
+            writeSorted(out, samples);
+        }
+    }
+
+    private static void writeSorted(ByteArrayOutputStream out, long[] samples) {
+        writeVar(out, samples.length);
+        long previous = 0;
+        for (int i = 0; i < samples.length; i++) {
+            if (i == 0) {
+                writeSigned(out, samples[0]);
+            } else {
+                writeVar(out, samples[i] - previous);
+            }
+            previous = samples[i];
+        }
+    }
+
+    /**
+     * Merges the next frame of this stream into target.
+     *
+     * @return the timestamp of the encoded bucket.
+     */
+    public long decode(byte[] frame, Bucket target) throws IOException {
+        return decode(ByteBuffer.wrap(frame), target);
+    }
+
+    /**
+     * Merges the next frame of this stream, from the buffer's position to its
+     * limit, into target.
+     *
+     * @return the timestamp of the encoded bucket.
+     */
+    public synchronized long decode(ByteBuffer in, Bucket target) throws IOException {
+        try {
+            if (in.get() != BUCKET) {
+                throw new IOException("Not a bucket frame");
+            }
+            int flags = in.get();
+            if ((flags & RESET) != 0) {
+                names.clear();
+                lastTimestamp = 0;
+            }
+            long timestamp = lastTimestamp + readSigned(in);
+            lastTimestamp = timestamp;
+
+            int newNames = readInt(in);
+            byte[] previous = new byte[0];
+            for (int i = 0; i < newNames; i++) {
+                int shared = readInt(in);
+                int suffix = readInt(in);
+                if (shared > previous.length) {
+                    throw new IOException("Corrupted name dictionary");
+                }
+                byte[] bytes = new byte[shared + suffix];
+                System.arraycopy(previous, 0, bytes, 0, shared);
+                in.get(bytes, shared, suffix);
+                names.add(new String(bytes, "UTF-8"));
+                previous = bytes;
+            }
+
+            int n = readInt(in);
+            for (int i = 0; i < n; i++) {
+                String name = name(readInt(in));
+                target.add(name, readSigned(in), Bucket.Type.c);
+            }
+            if ((flags & GAUGE_CELLS) != 0) {
+                n = readInt(in);
+                for (int i = 0; i < n; i++) {
+                    String name = name(readInt(in));
+                    boolean set = in.get() != 0;
+                    target.addGauge(name, readSigned(in), !set, true);
+                }
+            } else {
+                readSamples(in, target, Bucket.Type.g);
+            }
+            readSamples(in, target, Bucket.Type.ms);
+            if ((flags & RESERVOIRS) != 0) {
+                readReservoirs(in, target);
+            }
+            return timestamp;
+        } catch (BufferUnderflowException ex) {
+            throw new IOException("Truncated bucket frame");
+        }
+    }
+
+    private void readSamples(ByteBuffer in, Bucket target, Bucket.Type type) throws IOException {
+        int n = readInt(in);
+        for (int i = 0; i < n; i++) {
+            String name = name(readInt(in));
+            int samples = readInt(in);
+            long value = 0;
+            long sum = 0;
+            for (int j = 0; j < samples; j++) {
+                value = j == 0 ? readSigned(in) : value + readVar(in);
+                if (type == Bucket.Type.g) {
+                    sum += value;
+                } else {
+                    target.add(name, value, type);
+                }
+            }
+            if (type == Bucket.Type.g && samples > 0) {
+                // Older frames, gauges were flushed as their mean
+                target.add(name, sum / samples, type);
+            }
+        }
+    }
+
+    private void readReservoirs(ByteBuffer in, Bucket target) throws IOException {
+        int n = readInt(in);
+        for (int i = 0; i < n; i++) {
+            String name = name(readInt(in));
+            long count = readVar(in);
+            long sum = readSigned(in);
+            double sumSquares = Double.longBitsToDouble(readVar(in));
+            long min = readSigned(in);
+            long max = readSigned(in);
+            int kept = readInt(in);
+            // A sample takes a byte at least
+            if (kept > count || kept > in.remaining()) {
+                throw new IOException("Corrupted reservoir");
+            }
+            long[] samples = new long[kept];
+            long value = 0;
+            for (int j = 0; j < kept; j++) {
+                value = j == 0 ? readSigned(in) : value + readVar(in);
+                samples[j] = value;
+            }
+            if (count > 0) {
+                target.mergeReservoir(name, Reservoir.of(count, sum, sumSquares, min, max, samples));
+            }
+        }
+    }
+
+    private String name(int id) throws IOException {
+        if (id < 0 || id >= names.size()) {
+            throw new IOException("Unknown name id " + id);
+        }
+        return names.get(id);
+    }
+
+    static byte[] utf8(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    static void writeVar(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    static void writeSigned(ByteArrayOutputStream out, long value) {
+        writeVar(out, (value << 1) ^ (value >> 63));
+    }
+
+    static long readVar(ByteBuffer in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    static long readSigned(ByteBuffer in) throws IOException {
+        long raw = readVar(in);
+        return (raw >>> 1) ^ -(raw & 1);
+    }
+
+    static int readInt(ByteBuffer in) throws IOException {
+        long value = readVar(in);
+        if (value < 0 || value > Integer.MAX_VALUE) {
+            throw new IOException("Count out of range");
+        }
+        return (int) value;
+    }
+}
@@ -0,0 +1,262 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.ideeli.utils.jstatsd;
+
+import com.ideeli.utils.jstatsd.backends.BackendCalls;
+import com.ideeli.utils.jstatsd.backends.RelayBackend;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Splits metric names between the jstatsd's behind a load balancer, so every
+ * sample of a key is aggregated on the same node and its stats are exact.
+ *
+ * Names are placed on a consistent hash ring built from a static peer list
+ * (the same on every node), so adding or removing a node only moves the keys
+ * it owns. Samples of keys owned by another node are gathered on a bucket per
+ * peer and shipped every batch interval over a relay link to its RelayPort,
+ * where they are merged into the live bucket like a relaying edge's.
+ *
+ * A batch that can't be sent is aggregated locally instead: nothing is lost,
+ * but for that interval those keys are flushed by two nodes again.
+ *
+ * @author marc
+ */
+public class Cluster {
+
+    // Points per node on the ring
+    static final int POINTS = 160;
+    final String[] peers;
+    final int self;
+    final long batchMillis;
+    // Ring positions, sorted, and the node at each one
+    final int[] ring;
+    final int[] owners;
+    final Peer[] links;
+    final AtomicLong forwarded = new AtomicLong();
+    final AtomicLong fallback = new AtomicLong();
+    Jstatsd jstatsd;
+
+    /**
+     * Link to a peer, with its own scheduler so a slow one doesn't delay the
+     * others.
+     */
+    class Peer {
+
+        final String name;
+        final RelayBackend link;
+        volatile Bucket outbox = new Bucket();
+        // Swapped out on the previous batch, so late adds can land
+        Bucket retired = new Bucket();
+        // Logged once, until it's reached again
+        boolean down = false;
+        final Timer timer;
+
+        Peer(String name, String host, int port) {
+            this.name = name;
+            link = new RelayBackend(host, port);
+            timer = new Timer("Cluster link " + name + ".", true);
+        }
+
+        void start() {
+            timer.schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    send();
+                }
+            }, batchMillis, batchMillis);
+        }
+
+        synchronized void send() {
+            Bucket toSend = retired;
+            retired = outbox;
+            outbox = new Bucket();
+            send(toSend);
+        }
+
+        void send(Bucket toSend) {
+            if (toSend.getKeyCount() == 0) {
+                return;
+            }
+            try {
+                BackendCalls.await(link.flush(toSend));
+                down = false;
+            } catch (IOException ex) {
+                if (!down) {
+                    Logger.getLogger(Jstatsd.class.getName()).log(Level.WARNING, "Can''t forward to peer {0}, aggregating locally: {1}", new Object[]{name, ex.getMessage()});
+                    down = true;
+                }
+                fallback.addAndGet(toSend.getKeyCount());
+                jstatsd.getCurrentBucket().merge(toSend, "");
+            }
+        }
+
+        /**
+         * Stops batching and sends everything left.
+         */
+        synchronized void stop() {
+            timer.cancel();
+            send(retired);
+            send(outbox);
+            retired = new Bucket();
+            outbox = new Bucket();
+        }
+    }
+
+    /**
+     * @param peers host:RelayPort of every node, this one included, in the same
+     * order everywhere.
+     * @param self position of this node on peers.
+     */
+    public Cluster(String[] peers, int self, long batchMillis) {
+        if (self < 0 || self >= peers.length || batchMillis <= 0) {
+            throw new IllegalArgumentException();
+        }
+        this.peers = peers;
+        this.self = self;
+        this.batchMillis = batchMillis;
+        long[] points = new long[peers.length * POINTS];
+        for (int i = 0; i < peers.length; i++) {
+            for (int j = 0; j < POINTS; j++) {
+                // Position on the high half, node on the low one
+                points[i * POINTS + j] = ((long) hash(peers[i] + "-" + j) << 32) | i;
+            }
+        }
+        Arrays.sort(points);
+        ring = new int[points.length];
+        owners = new int[points.length];
+        for (int i = 0; i < points.length; i++) {
+            ring[i] = (int) (points[i] >> 32);
+            owners[i] = (int) points[i];
+        }
+        links = new Peer[peers.length];
+        for (int i = 0; i < peers.length; i++) {
+            if (i != self) {
+                int colon = peers[i].lastIndexOf(':');
+                links[i] = new Peer(peers[i], peers[i].substring(0, colon), Integer.parseInt(peers[i].substring(colon + 1)));
+            }
+        }
+    }
+
+    /**
+     * Parses a peer list like "jstatsd1:9300,jstatsd2:9300,jstatsd3:9300".
+     */
+    public static String[] parsePeers(String peerList) throws NumberFormatException {
+        List<String> result = new ArrayList<String>();
+        for (String entry : peerList.split(",")) {
+            entry = entry.trim();
+            if (entry.length() == 0) {
+                continue;
+            }
+            int colon = entry.lastIndexOf(':');
+            if (colon <= 0) {
+                throw new NumberFormatException("Missing port on " + entry);
+            }
+            int port = Integer.parseInt(entry.substring(colon + 1));
+            if (port <= 0 || port > 65535) {
+                throw new NumberFormatException("Invalid port on " + entry);
+            }
+            if (result.contains(entry)) {
+                throw new NumberFormatException("Peer listed twice: " + entry);
+            }
+            result.add(entry);
+        }
+        return result.toArray(new String[result.size()]);
+    }
+
+    /**
+     * String hash with its bits mixed (murmur3 finalizer), so similar names
+     * spread over the ring. Stable across JVMs, as every node must agree.
+     */
+    static int hash(String s) {
+        int h = s.hashCode();
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    /**
+     * Node owning a key, first point on the ring at or after its hash.
+     */
+    public int owner(String key) {
+        int pos = Arrays.binarySearch(ring, hash(key));
+        if (pos < 0) {
+            pos = -pos - 1;
+        }
+        return owners[pos == ring.length ? 0 : pos];
+    }
+
+    void start(Jstatsd jstatsd) {
+        this.jstatsd = jstatsd;
+        for (Peer p : links) {
+            if (p != null) {
+                p.start();
+            }
+        }
+    }
+
+    /**
+     * Queues a sample for its owner.
+     *
+     * @param delta a relative gauge update.
+     * @return false if this node owns it and must aggregate it.
+     */
+    public boolean forward(String key, long value, String type, boolean delta) {
+        int owner = owner(key);
+        if (owner == self) {
+            return false;
+        }
+        if (delta) {
+            links[owner].outbox.addGaugeDelta(key, value);
+        } else {
+            links[owner].outbox.addInternal(key, value, Bucket.Type.valueOf(type));
+        }
+        forwarded.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Sends what's pending, before the last flush.
+     */
+    void stop() {
+        for (Peer p : links) {
+            if (p != null) {
+                p.stop();
+            }
+        }
+    }
+
+    public String[] getPeers() {
+        return peers;
+    }
+
+    public int getSelf() {
+        return self;
+    }
+
+    /**
+     * Samples forwarded to other nodes.
+     */
+    public long getForwarded() {
+        return forwarded.get();
+    }
+
+    /**
+     * Keys aggregated here because their owner couldn't be reached.
+     */
+    public long getFallback() {
+        return fallback.get();
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.ideeli.utils.jstatsd;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Where flush time goes. Each phase adds up what it took during a flush
+ * cycle (parallel shards add up too), and finish() records every phase that
+ * ran on its histogram.
+ *
+ * Percentiles cover the last WINDOW to 2 * WINDOW cycles: histograms are
+ * rotated every WINDOW cycles and the previous one is kept.
+ *
+ * @author marc
+ */
+public class FlushTimings {
+
+    public enum Phase {
+
+        // Waiting for other flush work and swapping buckets
+        swap,
+        // Aggregating and formatting each type
+        counters, gauges, timers,
+        // Taking Graphite connections from the pool
+        checkout,
+        // Sending to the socket, on the writer thread
+        write,
+        // Formatting blocked because the socket was behind
+        stall,
+        // Writing to the secondary storage when the backend is down
+        fallback,
+        // The whole cycle, rollups included
+        total
+    };
+    public static final int WINDOW = 60;
+    static final Phase[] PHASES = Phase.values();
+    final AtomicLongArray cycle = new AtomicLongArray(PHASES.length);
+    LatencyHistogram[] current = histograms();
+    LatencyHistogram[] previous = histograms();
+    int cycles = 0;
+
+    static LatencyHistogram[] histograms() {
+        LatencyHistogram[] h = new LatencyHistogram[PHASES.length];
+        for (int i = 0; i < h.length; i++) {
+            h[i] = new LatencyHistogram();
+        }
+        return h;
+    }
+
+    public void add(Phase phase, long nanos) {
+        cycle.addAndGet(phase.ordinal(), Math.max(1, nanos));
+    }
+
+    /**
+     * Closes a cycle.
+     *
+     * @return what each phase took on it, for the log.
+     */
+    public synchronized String finish() {
+        StringBuilder line = new StringBuilder();
+        for (Phase phase : PHASES) {
+            long nanos = cycle.getAndSet(phase.ordinal(), 0);
+            if (nanos == 0) {
+                continue;
+            }
+            current[phase.ordinal()].record(nanos / 1000);
+            if (line.length() > 0) {
+                line.append(", ");
+            }
+            line.append(phase).append(' ').append(String.format("%.1f", nanos / 1e6)).append(" ms");
+        }
+        if (++cycles == WINDOW) {
+            LatencyHistogram[] reuse = previous;
+            previous = current;
+            for (LatencyHistogram h : reuse) {
+                h.reset();
+            }
+            current = reuse;
+            cycles = 0;
+        }
+        return line.toString();
+    }
+
+    /**
+     * Adds p50, p99 and max of every phase that ran, in microseconds, as
+     * gauges.
+     */
+    public synchronized void report(Bucket bucket) {
+        for (Phase phase : PHASES) {
+            LatencyHistogram c = current[phase.ordinal()];
+            LatencyHistogram p = previous[phase.ordinal()];
+            if (c.getCount() + p.getCount() == 0) {
+                continue;
+            }
+            String name = "statsd.flush." + phase + ".";
+            bucket.addInternal(name + "p50_us", LatencyHistogram.percentile(50, c, p), Bucket.Type.g);
+            bucket.addInternal(name + "p99_us", LatencyHistogram.percentile(99, c, p), Bucket.Type.g);
+            bucket.addInternal(name + "max_us", Math.max(c.getMax(), p.getMax()), Bucket.Type.g);
+        }
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.ideeli.utils.jstatsd;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Tracks the busiest metric names and prefixes using two Space-Saving
+ * sketches of a fixed number of counters.
+ *
+ * Only one of every "sampling" samples reaches the sketches, the rest just
+ * bump a plain (unsynchronized) tick, so the ingest path barely notices it.
+ * Counts are scaled back by the sampling rate when reported.
+ *
+ * @author marc
+ */
+public class HeavyHitters {
+
+    final int sampling;
+    final Sketch names;
+    final Sketch prefixes;
+    int tick = 0;
+    // Top list of the last finished interval
+    List<Entry> lastNames = new ArrayList<Entry>();
+    List<Entry> lastPrefixes = new ArrayList<Entry>();
+    double lastInterval = 0;
+
+    public HeavyHitters(int capacity, int sampling) {
+        if (capacity <= 0 || sampling <= 0) {
+            throw new IllegalArgumentException();
+        }
+        this.sampling = sampling;
+        names = new Sketch(capacity);
+        prefixes = new Sketch(capacity);
+    }
+
+    public static class Entry {
+
+        final String name;
+        long count;
+        long error;
+
+        Entry(String name, long count, long error) {
+            this.name = name;
+            this.count = count;
+            this.error = error;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Estimated samples, may overestimate by up to getError().
+         */
+        public long getCount() {
+            return count;
+        }
+
+        public long getError() {
+            return error;
+        }
+    }
+
+    /**
+     * Space-Saving: when a new item arrives and all the counters are taken, it
+     * replaces the smallest one and inherits its count as error.
+     */
+    static class Sketch {
+
+        final int capacity;
+        final HashMap<String, Entry> counters;
+
+        Sketch(int capacity) {
+            this.capacity = capacity;
+            counters = new HashMap<String, Entry>(capacity * 2);
+        }
+
+        void offer(String name) {
+            Entry e = counters.get(name);
+            if (e != null) {
+                e.count++;
+                return;
+            }
+            if (counters.size() < capacity) {
+                counters.put(name, new Entry(name, 1, 0));
+                return;
+            }
+            Entry min = null;
+            for (Entry candidate : counters.values()) {
+                if (min == null || candidate.count < min.count) {
+                    min = candidate;
+                }
+            }
+            counters.remove(min.name);
+            counters.put(name, new Entry(name, min.count + 1, min.count));
+        }
+
+        List<Entry> top(int n, int scale) {
+            List<Entry> result = new ArrayList<Entry>(counters.size());
+            for (Entry e : counters.values()) {
+                result.add(new Entry(e.name, e.count * scale, e.error * scale));
+            }
+            Collections.sort(result, new Comparator<Entry>() {
+                @Override
+                public int compare(Entry a, Entry b) {
+                    return a.count < b.count ? 1 : (a.count > b.count ? -1 : 0);
+                }
+            });
+            return result.size() > n ? new ArrayList<Entry>(result.subList(0, n)) : result;
+        }
+    }
+
+    /**
+     * Called for every ingested sample.
+     */
+    public void offer(String name) {
+        // Racy on purpose, a lost tick only shifts the sampling a bit
+        if (++tick < sampling) {
+            return;
+        }
+        tick = 0;
+        record(name);
+    }
+
+    synchronized void record(String name) {
+        names.offer(name);
+        int dot = name.indexOf('.');
+        prefixes.offer(dot > 0 ? name.substring(0, dot) : name);
+    }
+
+    /**
+     * Closes the interval: keeps its top list and starts counting again.
+     *
+     * @param interval interval length, in seconds.
+     */
+    public synchronized void rotate(int n, double interval) {
+        lastNames = names.top(n, sampling);
+        lastPrefixes = prefixes.top(n, sampling);
+        lastInterval = interval;
+        names.counters.clear();
+        prefixes.counters.clear();
+    }
+
+    public synchronized List<Entry> getLastNames() {
+        return lastNames;
+    }
+
+    public synchronized List<Entry> getLastPrefixes() {
+        return lastPrefixes;
+    }
+
+    public synchronized double getLastInterval() {
+        return lastInterval;
+    }
+
+    /**
+     * One line summary, like "a.b=1200/s a.c=800/s".
+     *
+     * @param interval interval length, in seconds.
+     */
+    public static String format(List<Entry> top, double interval) {
+        StringBuilder sb = new StringBuilder();
+        for (Entry e : top) {
+            if (sb.length() > 0) {
+                sb.append(' ');
+            }
+            sb.append(e.name).append('=').append(Math.round(e.count / interval)).append("/s");
+        }
+        return sb.toString();
+    }
+}
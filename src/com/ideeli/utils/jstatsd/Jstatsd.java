@@ -4,20 +4,47 @@
  */
 package com.ideeli.utils.jstatsd;
 
+import com.ideeli.utils.jstatsd.backends.ArchiveBackend;
 import com.ideeli.utils.jstatsd.backends.Backend;
+import com.ideeli.utils.jstatsd.backends.BackendCalls;
+import com.ideeli.utils.jstatsd.backends.BackendStats;
+import com.ideeli.utils.jstatsd.backends.DeflateBackend;
 import com.ideeli.utils.jstatsd.backends.GraphiteBackend;
+import com.ideeli.utils.jstatsd.backends.RelayBackend;
+import com.ideeli.utils.jstatsd.networking.ASyncUDPSrv;
+import com.ideeli.utils.jstatsd.networking.AdminConsumer;
+import com.ideeli.utils.jstatsd.networking.ConnectionPool;
+import com.ideeli.utils.jstatsd.networking.NioAdminServer;
+import com.ideeli.utils.jstatsd.networking.NioInflateServer;
+import com.ideeli.utils.jstatsd.networking.NioRelayServer;
 import com.ideeli.utils.jstatsd.networking.NioTCPServer;
 import com.ideeli.utils.jstatsd.networking.NioUDPServer;
+import com.ideeli.utils.jstatsd.networking.PacketCapture;
+import com.ideeli.utils.jstatsd.networking.RelayConsumer;
 import com.ideeli.utils.jstatsd.networking.TCPConsumer;
 import com.ideeli.utils.jstatsd.networking.UDPConsumer;
+import com.ideeli.utils.jstatsd.networking.UdpDispatch;
+import com.ideeli.utils.jstatsd.networking.UdpSocketStats;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.PrintWriter;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
 import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
@@ -27,13 +54,30 @@ import java.util.regex.Pattern;
  *
  * @author marc
  */
-public class Jstatsd implements UDPConsumer, TCPConsumer {
+public class Jstatsd implements UDPConsumer, TCPConsumer, AdminConsumer, RelayConsumer {
 
     String BackendHost;
     int BackendPort;
     int ProxyPort;
-    private int UDPPort;
-    private long delay;
+    // Compressed link between an edge jstatsd and a receiving one
+    boolean compressUpstream;
+    long upstreamSyncMillis;
+    int CompressedProxyPort;
+    NioInflateServer inflatesrvr;
+    // Tiered relay: edges ship merge ready buckets to a central jstatsd
+    boolean relayUpstream;
+    int RelayPort;
+    NioRelayServer relaysrvr;
+    final AtomicLong relayFrames = new AtomicLong();
+    // Keys split between peers, null if not clustered
+    Cluster cluster;
+    long lastForwarded = 0;
+    long lastClusterFallback = 0;
+    String archiveFile;
+    // Coarser intervals, finest first
+    List<Rollup> rollups;
+    int UDPPort;
+    long delay;
     // Bucket double buffer to avoid locking
     private Bucket[] bucket = new Bucket[2];
     int currentBucket = 0;
@@ -42,15 +86,143 @@ public class Jstatsd implements UDPConsumer, TCPConsumer {
     // Using only one bucket for now.
     // Interface prepared to allow multiple ones in the future
     private Backend backend;
+    // Renders failed flushes on stdout, never through the backend that failed
+    // (an ArchiveBackend would archive them again)
+    final GraphiteBackend secondary = new GraphiteBackend("localhost", 0);
     Timer scheduler = new Timer("Flush scheduler.");
     NioUDPServer udpsrvr;
     NioTCPServer tcpsrvr;
+    // Proxied lines deduplicated per window, null if disabled
+    ProxyCoalescer coalescer;
+    int proxyCoalesceMillis;
+    int proxyCoalesceLines;
+    long lastCoalesced = 0;
+    // Only used when a dispatch model is configured
+    ASyncUDPSrv asyncUdpsrvr;
+    UdpDispatch.Mode udpDispatchMode;
+    int udpDispatchThreads;
+    int udpDispatchQueue;
+    long lastUdpDropped = 0;
+    int udpReceiveBuffer;
+    int udpMaxDatagram;
+    // Kernel receive queue and drops, null where /proc/net/udp isn't there
+    UdpSocketStats udpStats;
+    long lastKernelDrops = -1;
+    // Extra UDP ports, each with its own prefix, bucket and backend
+    List<Pipeline> listeners = new ArrayList<Pipeline>();
+    final Map<Integer, Pipeline> listenerPorts = new HashMap<Integer, Pipeline>();
+    // Raw UDP capture for replays, null if disabled
+    String captureFile;
+    PacketCapture capture;
+    // Busiest keys, null if disabled
+    HeavyHitters hitters;
+    int topK;
+    int topKSampling;
+    long lastRotate = System.currentTimeMillis();
+    int AdminPort;
+    NioAdminServer adminsrvr;
+    final long startTime = System.currentTimeMillis();
+    // Last flush, for the admin port
+    volatile long lastFlushStart = 0;
+    volatile long lastFlushMillis = 0;
+    volatile int lastFlushKeys = 0;
+    volatile String lastFlushResult = "none";
+    // Time per flush phase, shared with the Graphite backends
+    final FlushTimings timings = new FlushTimings();
+
+    // Aggregation outside the heap, on direct memory or mapped files
+    boolean offHeap;
+    int offHeapKeys;
+    File offHeapDir;
+    // Connections written in parallel on a flush
+    int flushShards;
+    // Max samples kept per timer key, 0 for all
+    int timerReservoir;
+    // Timer samples as varints on byte chunks
+    boolean packedTimers;
+    // Heap estimate that triggers compacting the live bucket, 0 disables it
+    long highWater;
+    int highWaterSamples;
+    final AtomicBoolean compactPending = new AtomicBoolean();
+    final AtomicLong compactions = new AtomicLong();
+    // Key admission limits, each bucket gets its own copy
+    KeyAdmission admission = new KeyAdmission();
+    // DogStatsD tags, interned into "name;tag=value" keys
+    final Tags tags = new Tags();
+    boolean tagsAsPath = false;
+    // Drop and rename rules for metric names
+    NameRules rules = new NameRules();
+    long lastRulesDropped = 0;
+    // Last value of every gauge, sent again while not updated
+    final RetainedGauges gaugeValues = new RetainedGauges();
+    boolean deleteGauges = false;
+    int gaugeIdleIntervals;
+    int maxRetainedGauges;
+    // State kept across restarts, null if disabled
+    String snapshotFile;
+    int lastCounters = 0;
+    int lastGauges = 0;
+    int lastTimers = 0;
+    // Serializes the scheduled flushes with the final one
+    final Object flushLock = new Object();
+    boolean shuttingDown = false;
 
     public Jstatsd() {
         bucket[0] = new Bucket();
         bucket[1] = new Bucket();
     }
 
+    void initBuckets() {
+        Snapshot snapshot = null;
+        if (snapshotFile != null) {
+            try {
+                snapshot = Snapshot.read(snapshotFile);
+            } catch (IOException ex) {
+                Logger.getLogger(Jstatsd.class.getName()).log(Level.SEVERE, "Ignoring snapshot", ex);
+            }
+        }
+        for (int i = 0; i < bucket.length; i++) {
+            bucket[i] = newBucket(snapshot);
+        }
+        if (snapshot == null) {
+            return;
+        }
+        try {
+            snapshot.restore(bucket[currentBucket], gaugeValues);
+            Logger.getLogger(Jstatsd.class.getName()).log(Level.INFO, "Restored {0} keys and {1} gauges from {2}",
+                    new Object[]{bucket[currentBucket].getKeyCount(), gaugeValues.size(), snapshotFile});
+        } catch (IOException ex) {
+            Logger.getLogger(Jstatsd.class.getName()).log(Level.SEVERE, "Ignoring snapshot", ex);
+        }
+        // Restored once, never again
+        new File(snapshotFile).delete();
+    }
+
+    /**
+     * @param snapshot sizes from the last run, or null.
+     */
+    Bucket newBucket(Snapshot snapshot) {
+        KeyAdmission bucketAdmission = new KeyAdmission(admission);
+        if (offHeap) {
+            int keys = offHeapKeys;
+            if (snapshot != null) {
+                keys = Math.max(keys, snapshot.getCounters() + snapshot.getGauges() + snapshot.getTimers());
+            }
+            try {
+                return new Bucket(bucketAdmission, new OffHeapStore(keys, offHeapDir));
+            } catch (IOException ex) {
+                Logger.getLogger(Jstatsd.class.getName()).log(Level.SEVERE, "Can't allocate the off heap store", ex);
+                System.exit(1);
+            }
+        }
+        Bucket b = snapshot == null ? new Bucket(bucketAdmission)
+                : new Bucket(bucketAdmission, snapshot.getCounters(), snapshot.getGauges(), snapshot.getTimers());
+        b.setReservoirSize(timerReservoir);
+        b.setPackedTimers(packedTimers);
+        b.setHighWater(highWater, highWaterSamples);
+        return b;
+    }
+
     public void setDebug(boolean debug) {
         if (debug) {
             Logger.getLogger(Jstatsd.class.getName()).log(Level.WARNING, "Debug enabled");
@@ -60,77 +232,447 @@ public class Jstatsd implements UDPConsumer, TCPConsumer {
 
     public void init() throws UnknownHostException, IOException {
         validateAndLoadProperties();
+        initBuckets();
+        initHeavyHitters();
         initNeworking();
         initScheduler();
     }
 
+    void initHeavyHitters() {
+        if (topK > 0) {
+            hitters = new HeavyHitters(topK * 4, topKSampling);
+        }
+    }
+
     void initNeworking() throws UnknownHostException, IOException {
         // This may look stupid now, but will make easier
         // to have more than one backend in the future.
-        backend = new GraphiteBackend(BackendHost, BackendPort);
-        udpsrvr = new NioUDPServer(UDPPort, this);
+        if (relayUpstream) {
+            backend = new RelayBackend(BackendHost, BackendPort);
+        } else if (compressUpstream) {
+            backend = new DeflateBackend(BackendHost, BackendPort, upstreamSyncMillis);
+        } else {
+            backend = new GraphiteBackend(BackendHost, BackendPort);
+        }
+        if (backend instanceof GraphiteBackend) {
+            ((GraphiteBackend) backend).setTagsAsPath(tagsAsPath);
+            ((GraphiteBackend) backend).setFlushShards(flushShards);
+            ((GraphiteBackend) backend).setTimings(timings);
+        }
+        if (archiveFile != null) {
+            backend = new ArchiveBackend(backend, archiveFile);
+        }
+        secondary.setTagsAsPath(tagsAsPath);
+        for (Rollup r : rollups) {
+            r.getBucket().setReservoirSize(timerReservoir);
+            r.getBucket().setPackedTimers(packedTimers);
+            r.getBucket().setHighWater(highWater, highWaterSamples);
+            if (r.getBackend() != null) {
+                ((GraphiteBackend) r.getBackend()).setTagsAsPath(tagsAsPath);
+                ((GraphiteBackend) r.getBackend()).setFlushShards(flushShards);
+                ((GraphiteBackend) r.getBackend()).setTimings(timings);
+                r.getBackend().init();
+            }
+        }
         tcpsrvr = new NioTCPServer(ProxyPort, this);
         backend.init();
+        if (proxyCoalesceMillis > 0) {
+            coalescer = new ProxyCoalescer(backend, proxyCoalesceMillis, proxyCoalesceLines);
+            coalescer.start();
+        }
         tcpsrvr.init();
-        udpsrvr.init();
+        if (CompressedProxyPort > 0) {
+            inflatesrvr = new NioInflateServer(CompressedProxyPort, this);
+            inflatesrvr.init();
+        }
+        if (RelayPort > 0) {
+            relaysrvr = new NioRelayServer(RelayPort, this);
+            relaysrvr.init();
+        }
+        if (cluster != null) {
+            cluster.start(this);
+        }
+        for (Pipeline l : listeners) {
+            l.init(this);
+            listenerPorts.put(l.getPort(), l);
+        }
+        if (captureFile != null) {
+            capture = new PacketCapture(captureFile, PacketCapture.QUEUE);
+            capture.start();
+        }
+        if (udpDispatchMode == null) {
+            udpsrvr = new NioUDPServer(UDPPort, this);
+            udpsrvr.setCapture(capture);
+            udpsrvr.setMaxDatagram(udpMaxDatagram);
+            udpsrvr.setReceiveBuffer(udpReceiveBuffer);
+            for (Pipeline l : listeners) {
+                udpsrvr.addPort(l.getPort());
+            }
+            udpsrvr.init();
+        } else {
+            asyncUdpsrvr = new ASyncUDPSrv(UDPPort, this, new UdpDispatch(udpDispatchMode, udpDispatchThreads, udpDispatchQueue));
+            asyncUdpsrvr.setMaxDatagram(udpMaxDatagram);
+            asyncUdpsrvr.setReceiveBuffer(udpReceiveBuffer);
+            asyncUdpsrvr.setCapture(capture);
+            for (Pipeline l : listeners) {
+                asyncUdpsrvr.addPort(l.getPort());
+            }
+            asyncUdpsrvr.start();
+        }
+        int[] ports = new int[listeners.size() + 1];
+        ports[0] = UDPPort;
+        for (int i = 0; i < listeners.size(); i++) {
+            ports[i + 1] = listeners.get(i).getPort();
+        }
+        udpStats = new UdpSocketStats(ports);
+        if (!udpStats.read()) {
+            Logger.getLogger(Jstatsd.class.getName()).log(Level.INFO, "No /proc/net/udp, kernel UDP drops won't be reported");
+            udpStats = null;
+        }
+        if (AdminPort > 0) {
+            adminsrvr = new NioAdminServer(AdminPort, this);
+            adminsrvr.init();
+        }
+    }
+
+    void rotateHeavyHitters() {
+        if (hitters == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        double interval = Math.max(1, now - lastRotate) / 1000.0;
+        lastRotate = now;
+        hitters.rotate(topK, interval);
+        Logger.getLogger(Jstatsd.class.getName()).log(Level.INFO, "Top keys: {0}", HeavyHitters.format(hitters.getLastNames(), interval));
+        Logger.getLogger(Jstatsd.class.getName()).log(Level.INFO, "Top prefixes: {0}", HeavyHitters.format(hitters.getLastPrefixes(), interval));
+    }
+
+    /**
+     * Adds the load shedding counters to the bucket about to be flushed.
+     */
+    void reportDrops(Bucket toFlush) {
+        toFlush.getAdmission().report(toFlush);
+        gaugeValues.report(toFlush);
+        if (toFlush.getPacked() != null) {
+            toFlush.getPacked().report(toFlush);
+        }
+        if (!rules.isEmpty()) {
+            long dropped = rules.getDropped();
+            toFlush.addInternal(KeyAdmission.DROPPED_PREFIX + "rules", dropped - lastRulesDropped, Bucket.Type.c);
+            lastRulesDropped = dropped;
+        }
+        reportKernelDrops(toFlush);
+        reportCluster(toFlush);
+        if (coalescer != null) {
+            long replaced = coalescer.getReplaced();
+            toFlush.addInternal("statsd.proxy.coalesced", replaced - lastCoalesced, Bucket.Type.c);
+            lastCoalesced = replaced;
+        }
+        if (asyncUdpsrvr == null) {
+            return;
+        }
+        long dropped = asyncUdpsrvr.getDispatch().getDropped();
+        if (dropped != lastUdpDropped) {
+            Logger.getLogger(Jstatsd.class.getName()).log(Level.WARNING, "UDP dispatch shed {0} batches since last flush", (dropped - lastUdpDropped));
+        }
+        toFlush.addInternal(KeyAdmission.DROPPED_PREFIX + "udp_batches", dropped - lastUdpDropped, Bucket.Type.c);
+        lastUdpDropped = dropped;
+    }
+
+    /**
+     * Keys forwarded to other cluster nodes, or aggregated here instead.
+     */
+    void reportCluster(Bucket toFlush) {
+        if (cluster == null) {
+            return;
+        }
+        long forwarded = cluster.getForwarded();
+        long fallback = cluster.getFallback();
+        toFlush.addInternal("statsd.cluster.forwarded", forwarded - lastForwarded, Bucket.Type.c);
+        toFlush.addInternal("statsd.cluster.fallback_keys", fallback - lastClusterFallback, Bucket.Type.c);
+        lastForwarded = forwarded;
+        lastClusterFallback = fallback;
+    }
+
+    /**
+     * Datagrams the kernel dropped because the receive buffer was full, and
+     * how much is waiting on it right now.
+     */
+    void reportKernelDrops(Bucket toFlush) {
+        if (udpStats == null || !udpStats.read()) {
+            return;
+        }
+        long dropped = udpStats.getDrops();
+        // Drops before we started aren't ours
+        long delta = lastKernelDrops < 0 ? 0 : Math.max(0, dropped - lastKernelDrops);
+        if (delta > 0) {
+            Logger.getLogger(Jstatsd.class.getName()).log(Level.WARNING, "Kernel dropped {0} UDP datagrams since last flush", delta);
+        }
+        toFlush.addInternal(KeyAdmission.DROPPED_PREFIX + "kernel", delta, Bucket.Type.c);
+        toFlush.addInternal("statsd.udp.rx_queue_bytes", udpStats.getRxQueue(), Bucket.Type.g);
+        lastKernelDrops = dropped;
     }
 
     void initScheduler() {
         scheduler.schedule(new TimerTask() {
             @Override
             public void run() {
-                int oldBucket = currentBucket;
-                // Make entries to write on the other Bucket
-                synchronized (bucketLock) {
-                    currentBucket = (currentBucket + 1) % 2;
-                }
-                if (debug) {
-                    System.out.println("Flushing buket " + oldBucket);
-                    try {
-                        backend.flush(System.out, bucket[oldBucket]);
-                    } catch (IOException ex) {
-                        Logger.getLogger(Jstatsd.class.getName()).log(Level.SEVERE, null, ex);
+                long start = System.nanoTime();
+                synchronized (flushLock) {
+                    // Compaction or shutdown may be holding it
+                    timings.add(FlushTimings.Phase.swap, System.nanoTime() - start);
+                    if (!shuttingDown) {
+                        swapAndFlush();
                     }
-                    return;
                 }
-                try {
-                    backend.flush(bucket[oldBucket]);
-                } catch (IOException ex) {
-                    Logger.getLogger(Jstatsd.class.getName()).log(Level.SEVERE, "Backend disconnected using secondary storage.");
-                    try {
-                        backend.flush(System.out, bucket[oldBucket]);
-                    } catch (IOException ex1) {
-                        Logger.getLogger(Jstatsd.class.getName()).log(Level.SEVERE, null, ex1);
+            }
+        }, delay, delay);
+    }
+
+    /**
+     * Compacts a bucket gone over the high water mark on the scheduler
+     * thread, so it never runs along with a flush. Interval boundaries don't
+     * change.
+     */
+    void compactSoon(final Bucket b) {
+        if (!compactPending.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            scheduler.schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    synchronized (flushLock) {
+                        compactPending.set(false);
+                        compact(b, "bucket");
                     }
                 }
+            }, 0);
+        } catch (IllegalStateException ex) {
+            // Shutting down
+        }
+    }
+
+    void compact(Bucket b, String which) {
+        long before = b.getApproxBytes();
+        int keys = b.compact();
+        compactions.incrementAndGet();
+        Logger.getLogger(Jstatsd.class.getName()).log(Level.INFO, "Compacted {0} timer keys on the {1}, about {2} KB to {3} KB",
+                new Object[]{keys, which, before / 1024, b.getApproxBytes() / 1024});
+    }
+
+    String swapAndFlush() {
+        long start = System.currentTimeMillis();
+        long startNanos = System.nanoTime();
+        int oldBucket = currentBucket;
+        // Make entries to write on the other Bucket
+        synchronized (bucketLock) {
+            bucket[(currentBucket + 1) % 2].setFlushTime(start);
+            bucket[currentBucket].setFlushEnd(start);
+            currentBucket = (currentBucket + 1) % 2;
+        }
+        timings.add(FlushTimings.Phase.swap, System.nanoTime() - startNanos);
+        lastFlushKeys = bucket[oldBucket].getKeyCount();
+        lastFlushResult = flush(oldBucket);
+        lastFlushStart = start;
+        lastFlushMillis = System.currentTimeMillis() - start;
+        timings.add(FlushTimings.Phase.total, System.nanoTime() - startNanos);
+        Logger.getLogger(Jstatsd.class.getName()).log(Level.INFO, "Flushed {0} keys: {1}", new Object[]{lastFlushKeys, timings.finish()});
+        return lastFlushResult;
+    }
+
+    /**
+     * Keeps what the snapshot needs from a bucket about to be flushed.
+     */
+    void trackState(Bucket toFlush) {
+        if (snapshotFile == null) {
+            return;
+        }
+        lastCounters = toFlush.getKeyCount(Bucket.Type.c);
+        lastGauges = toFlush.getKeyCount(Bucket.Type.g);
+        lastTimers = toFlush.getKeyCount(Bucket.Type.ms);
+    }
+
+    /**
+     * Resolves relative gauges over their last value and adds the ones not
+     * updated on this interval.
+     */
+    void retainGauges(Bucket toFlush) {
+        if (deleteGauges) {
+            gaugeValues.clear();
+        }
+        toFlush.resolveGauges(gaugeValues);
+        if (cluster != null) {
+            // Only ours, peers' got here while they couldn't be reached
+            for (Iterator<String> it = gaugeValues.names().iterator(); it.hasNext();) {
+                if (cluster.owner(it.next()) != cluster.getSelf()) {
+                    it.remove();
+                }
             }
-        }, delay, delay);
+        }
     }
 
+    /**
+     * Flushes a bucket no longer receiving samples.
+     *
+     * @return where it ended: "backend", "debug", "fallback" or, when shutting
+     * down with a snapshot, "pending" (bucket left untouched).
+     */
+    String flush(int oldBucket) {
+        if (!relayUpstream) {
+            // Relaying edges leave it to the central one, where deltas from
+            // every edge add up
+            retainGauges(bucket[oldBucket]);
+        }
+        reportDrops(bucket[oldBucket]);
+        timings.report(bucket[oldBucket]);
+        backend.getStats().report(bucket[oldBucket]);
+        rotateHeavyHitters();
+        trackState(bucket[oldBucket]);
+        long now = System.currentTimeMillis();
+        for (Rollup r : rollups) {
+            if (r.getSource() == null) {
+                r.getBucket().merge(bucket[oldBucket], "");
+            }
+            if (r.getBucket().isOverHighWater()) {
+                compact(r.getBucket(), "rollup " + r.getInterval() + "s");
+            }
+        }
+        String result = flush(backend, bucket[oldBucket], shuttingDown && snapshotFile != null);
+        flushRollups(now, shuttingDown);
+        return result;
+    }
+
+    /**
+     * Flushes the rollups that are due, or all of them if forced.
+     */
+    void flushRollups(long now, boolean force) {
+        for (Rollup r : rollups) {
+            if (!r.tick() && !force) {
+                continue;
+            }
+            // Coarser ones are later on the list, they get it before their turn
+            for (Rollup coarser : rollups) {
+                if (coarser.getSource() == r) {
+                    coarser.getBucket().merge(r.getBucket(), "");
+                }
+            }
+            flush(r.getBackend() != null ? r.getBackend() : backend, r.drain(now), false);
+        }
+    }
+
+    String flush(Backend backend, Bucket toFlush, boolean keepOnFailure) {
+        return flush(backend, toFlush, keepOnFailure, timings);
+    }
+
+    String flush(Backend backend, Bucket toFlush, boolean keepOnFailure, FlushTimings timings) {
+        if (debug) {
+            System.out.println("Flushing buket " + toFlush);
+            try {
+                backend.flush(System.out, toFlush);
+            } catch (IOException ex) {
+                Logger.getLogger(Jstatsd.class.getName()).log(Level.SEVERE, null, ex);
+            }
+            return "debug";
+        }
+        try {
+            BackendCalls.await(backend.flush(toFlush));
+        } catch (IOException ex) {
+            if (keepOnFailure) {
+                Logger.getLogger(Jstatsd.class.getName()).log(Level.SEVERE, "Backend disconnected, keeping the last bucket on the snapshot.");
+                return "pending";
+            }
+            Logger.getLogger(Jstatsd.class.getName()).log(Level.SEVERE, "Backend disconnected using secondary storage.");
+            long start = System.nanoTime();
+            secondary.flush(System.out, toFlush);
+            timings.add(FlushTimings.Phase.fallback, System.nanoTime() - start);
+            return "fallback";
+        }
+        return "backend";
+    }
+
+    /**
+     * Stops ingesting, flushes what's left and, if enabled, saves the
+     * snapshot.
+     */
     public void shutDown() {
+        synchronized (flushLock) {
+            shuttingDown = true;
+        }
+        scheduler.cancel();
+        if (udpsrvr != null) {
+            udpsrvr.close();
+        }
+        if (asyncUdpsrvr != null) {
+            asyncUdpsrvr.stop();
+        }
+        if (tcpsrvr != null) {
+            tcpsrvr.close();
+        }
+        if (inflatesrvr != null) {
+            inflatesrvr.close();
+        }
+        if (relaysrvr != null) {
+            relaysrvr.close();
+        }
+        if (adminsrvr != null) {
+            adminsrvr.close();
+        }
+        if (coalescer != null) {
+            coalescer.stop();
+        }
+        if (capture != null) {
+            capture.stop();
+        }
+        if (cluster != null) {
+            cluster.stop();
+        }
+        for (Pipeline l : listeners) {
+            l.shutDown();
+        }
+        synchronized (flushLock) {
+            int last = currentBucket;
+            Bucket pending = swapAndFlush().equals("pending") ? bucket[last] : null;
+            if (snapshotFile == null) {
+                return;
+            }
+            try {
+                Snapshot.write(snapshotFile, lastCounters, lastGauges, lastTimers, pending, gaugeValues.values());
+                Logger.getLogger(Jstatsd.class.getName()).log(Level.INFO, "Snapshot saved to {0}", snapshotFile);
+            } catch (IOException ex) {
+                Logger.getLogger(Jstatsd.class.getName()).log(Level.SEVERE, "Can't save snapshot", ex);
+            }
+        }
     }
-    Pattern p = Pattern.compile("^([^:]+):(\\d+)\\|(g|c|ms)$");
+    Pattern p = Pattern.compile("^([^:]+):([+-]?\\d+)\\|(g|c|ms)(?:\\|#([^|]*))?$");
 
     @Override
     public void consumeTCP(int port, String data) {
         if (debug) {
             System.out.println("Proxy received: " + data);
         }
-        try {
-            backend.send(data);
-        } catch (IOException ex) {
-            Logger.getLogger(Jstatsd.class.getName()).log(Level.SEVERE, "Backend disconnected using secondary storage.");
-            System.out.println(data);
+        data = rules.applyLines(data);
+        if (data == null) {
+            return;
         }
+        if (coalescer != null) {
+            coalescer.add(data);
+            return;
+        }
+        // Not waited for, a failed send leaves the lines on stdout
+        backend.send(data);
     }
 
     @Override
     public void consumeUDP(int port, String data) {
         long value;
+        boolean signed;
         Matcher m = p.matcher(data);
         try {
             boolean b = m.matches();
-            value = new Long(m.group(2)).longValue();
+            String number = m.group(2);
+            signed = number.charAt(0) == '+' || number.charAt(0) == '-';
+            value = new Long(number.charAt(0) == '+' ? number.substring(1) : number).longValue();
         } catch (IllegalStateException ex) {
             Logger.getLogger(Jstatsd.class.getName()).log(Level.WARNING, "Malformed input: " + data, ex);
             return;
@@ -138,11 +680,220 @@ public class Jstatsd implements UDPConsumer, TCPConsumer {
             Logger.getLogger(Jstatsd.class.getName()).log(Level.WARNING, "Number format exception: " + data, ex);
             return;
         }
+        String name = rules.apply(m.group(1));
+        if (name == null) {
+            return;
+        }
+        if (hitters != null) {
+            hitters.offer(name);
+        }
+        String key = tags.key(name, m.group(4));
+        String type = m.group(3);
+        // A sign on a gauge makes it relative
+        boolean delta = signed && type.equals("g");
+        if (port != UDPPort) {
+            Pipeline l = listenerPorts.get(port);
+            if (l != null) {
+                l.add(key, value, type, delta);
+                return;
+            }
+        }
+        if (cluster != null && cluster.forward(key, value, type, delta)) {
+            return;
+        }
         Bucket bucketToUse;
         synchronized (bucketLock) {
             bucketToUse = bucket[currentBucket];
         }
-        bucketToUse.add(m.group(1), value, m.group(3));
+        if (delta) {
+            bucketToUse.addGaugeDelta(key, value);
+        } else {
+            bucketToUse.add(key, value, type);
+        }
+        if (bucketToUse.isOverHighWater()) {
+            compactSoon(bucketToUse);
+        }
+    }
+
+    @Override
+    public void consumeRelay(int port, BucketCodec codec, byte[] frame) {
+        if (frame.length == 0) {
+            return;
+        }
+        relayFrames.incrementAndGet();
+        try {
+            if (frame[0] == BucketCodec.LINES) {
+                consumeTCP(port, new String(frame, 1, frame.length - 1, "UTF-8"));
+            } else {
+                Bucket current = getCurrentBucket();
+                codec.decode(frame, current);
+                if (current.isOverHighWater()) {
+                    compactSoon(current);
+                }
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(Jstatsd.class.getName()).log(Level.WARNING, "Malformed relay frame", ex);
+        }
+    }
+
+    @Override
+    public void consumeAdmin(int port, String command, PrintWriter out) {
+        String[] args = command.split("\\s+");
+        if (args[0].equals("topk")) {
+            if (hitters == null) {
+                out.println("ERROR top keys tracking disabled");
+                return;
+            }
+            boolean prefixes = args.length > 1 && args[1].equals("prefixes");
+            List<HeavyHitters.Entry> top = prefixes ? hitters.getLastPrefixes() : hitters.getLastNames();
+            double interval = hitters.getLastInterval();
+            for (HeavyHitters.Entry e : top) {
+                out.println(e.getName() + " " + e.getCount() + " " + e.getError() + " " + Math.round(e.getCount() / interval));
+            }
+        } else if (args[0].equals("stats")) {
+            dumpStats(out);
+        } else if (args[0].equals("keys")) {
+            dumpKeys(out, args.length > 1 ? args[1] : "all", args.length > 2 ? args[2] : "");
+        } else if (args[0].equals("help")) {
+            out.println("stats: key counts, queues, connection pool and last flush");
+            out.println("keys [all|counters|gauges|timers] [prefix]: live keys: type name value (counters, gauges) or samples (timers)");
+            out.println("topk [prefixes]: busiest keys (or prefixes) of the last interval: name samples error samples/s");
+            out.println("quit");
+        } else {
+            out.println("ERROR unknown command: " + args[0]);
+        }
+    }
+
+    Bucket getCurrentBucket() {
+        synchronized (bucketLock) {
+            return bucket[currentBucket];
+        }
+    }
+
+    void dumpStats(PrintWriter out) {
+        Bucket current = getCurrentBucket();
+        Backend backend = this.backend instanceof ArchiveBackend ? ((ArchiveBackend) this.backend).getBackend() : this.backend;
+        out.println("uptime " + (System.currentTimeMillis() - startTime) / 1000);
+        out.println("bucket.counters " + current.getKeyCount(Bucket.Type.c));
+        out.println("bucket.gauges " + current.getKeyCount(Bucket.Type.g));
+        out.println("bucket.timers " + current.getKeyCount(Bucket.Type.ms));
+        if (current.getStore() != null) {
+            out.println("bucket.offheap_bytes " + current.getStore().getCapacityBytes());
+        }
+        if (current.getPacked() != null) {
+            out.println("bucket.packed_bytes " + current.getPacked().getChunkBytes());
+            out.println("bucket.packed_slab_bytes " + current.getPacked().getSlabBytes());
+            out.println("bucket.packed_dropped " + current.getPacked().getDropped());
+        }
+        if (highWater > 0) {
+            out.println("bucket.approx_bytes " + current.getApproxBytes());
+            out.println("bucket.compactions " + compactions.get());
+        }
+        out.println("bucket.admitted " + current.getAdmission().getAdmitted());
+        out.println("bucket.rejected " + current.getAdmission().getRejected());
+        if (asyncUdpsrvr != null) {
+            UdpDispatch dispatch = asyncUdpsrvr.getDispatch();
+            out.println("udp.dispatch " + dispatch.getMode());
+            out.println("udp.queue " + dispatch.getQueueDepth());
+            out.println("udp.batches " + dispatch.getDispatched());
+            out.println("udp.dropped " + dispatch.getDropped());
+        } else {
+            out.println("udp.dispatch mina");
+        }
+        if (capture != null) {
+            out.println("capture.datagrams " + capture.getCaptured());
+            out.println("capture.dropped " + capture.getDropped());
+        }
+        if (udpStats != null) {
+            out.println("udp.kernel_dropped " + udpStats.getDrops());
+            out.println("udp.rx_queue_bytes " + udpStats.getRxQueue());
+        }
+        if (backend instanceof GraphiteBackend && ((GraphiteBackend) backend).getPool() != null) {
+            ConnectionPool pool = ((GraphiteBackend) backend).getPool();
+            out.println("pool.capacity " + pool.getCapacity());
+            out.println("pool.open " + pool.getOpenConnections());
+            out.println("pool.used " + pool.getUsedConnections());
+        }
+        BackendStats stats = backend.getStats();
+        out.println("backend.concurrency " + backend.getConcurrency());
+        out.println("backend.flushes " + stats.getFlushes());
+        out.println("backend.flush_failures " + stats.getFlushFailures());
+        out.println("backend.sends " + stats.getSends());
+        out.println("backend.lines " + stats.getLines());
+        out.println("backend.send_failures " + stats.getSendFailures());
+        out.println("backend.send_dropped " + stats.getSendDrops());
+        out.println("backend.send_pending " + stats.getPending());
+        if (backend instanceof DeflateBackend) {
+            DeflateBackend upstream = (DeflateBackend) backend;
+            out.println("upstream.raw_bytes " + upstream.getRawBytes());
+            out.println("upstream.compressed_bytes " + upstream.getCompressedBytes());
+            out.println("upstream.ratio " + upstream.getRatio());
+        }
+        if (relaysrvr != null) {
+            out.println("relay.frames " + relayFrames.get());
+        }
+        if (coalescer != null) {
+            out.println("proxy.received " + coalescer.getReceived());
+            out.println("proxy.sent " + coalescer.getSent());
+            out.println("proxy.coalesced " + coalescer.getReplaced());
+        }
+        if (cluster != null) {
+            out.println("cluster.forwarded " + cluster.getForwarded());
+            out.println("cluster.fallback_keys " + cluster.getFallback());
+        }
+        for (Rollup r : rollups) {
+            out.println("rollup." + r.getInterval() + ".keys " + r.getBucket().getKeyCount());
+        }
+        for (Pipeline l : listeners) {
+            out.println("listener." + l.getPort() + ".keys " + l.getCurrentBucket().getKeyCount());
+            out.println("listener." + l.getPort() + ".flush.keys " + l.lastFlushKeys);
+            out.println("listener." + l.getPort() + ".flush.result " + l.lastFlushResult);
+        }
+        out.println("flush.last " + lastFlushStart);
+        out.println("flush.millis " + lastFlushMillis);
+        out.println("flush.keys " + lastFlushKeys);
+        out.println("flush.result " + lastFlushResult);
+    }
+
+    /**
+     * Streams the live bucket's keys without copying it, so the output is
+     * only weakly consistent with what's being ingested.
+     */
+    void dumpKeys(final PrintWriter out, String type, final String prefix) {
+        boolean all = type.equals("all");
+        Set<Bucket.Type> types = EnumSet.noneOf(Bucket.Type.class);
+        if (all || type.equals("counters")) {
+            types.add(Bucket.Type.c);
+        }
+        if (all || type.equals("gauges")) {
+            types.add(Bucket.Type.g);
+        }
+        if (all || type.equals("timers")) {
+            types.add(Bucket.Type.ms);
+        }
+        getCurrentBucket().visitKeys(new Bucket.KeyVisitor() {
+            @Override
+            public void counter(String name, long sum) {
+                if (name.startsWith(prefix)) {
+                    out.println("c " + name + " " + sum);
+                }
+            }
+
+            @Override
+            public void gauge(String name, long value, boolean set) {
+                if (name.startsWith(prefix)) {
+                    // Relative ones, never set on this interval, with a sign
+                    out.println("g " + name + " " + (set || value < 0 ? "" : "+") + value);
+                }
+            }
+
+            @Override
+            public void timer(String name, long samples) {
+                if (name.startsWith(prefix)) {
+                    out.println("ms " + name + " " + samples);
+                }
+            }
+        }, types);
     }
 
     void validateAndLoadProperties() {
@@ -175,6 +926,226 @@ public class Jstatsd implements UDPConsumer, TCPConsumer {
             Logger.getLogger(Jstatsd.class.getName()).log(Level.SEVERE, "Invalid GraphiteProxyPort: {0}", System.getProperty("jstatsd.GraphitePort"));
             System.exit(1);
         }
+        String dispatch = System.getProperty("jstatsd.UdpDispatch", "").trim();
+        if (dispatch.length() > 0 && !dispatch.equals("mina")) {
+            udpDispatchMode = UdpDispatch.parseMode(dispatch);
+            if (udpDispatchMode == null) {
+                Logger.getLogger(Jstatsd.class.getName()).log(Level.SEVERE, "Invalid UdpDispatch: {0}", dispatch);
+                System.exit(1);
+            }
+        }
+        try {
+            udpDispatchThreads = new Integer(System.getProperty("jstatsd.UdpDispatchThreads", "" + Runtime.getRuntime().availableProcessors()));
+            udpDispatchQueue = new Integer(System.getProperty("jstatsd.UdpDispatchQueue", "1024"));
+        } catch (NumberFormatException e) {
+            Logger.getLogger(Jstatsd.class.getName()).log(Level.SEVERE, "Invalid UdpDispatchThreads/UdpDispatchQueue");
+            System.exit(1);
+        }
+        try {
+            udpReceiveBuffer = new Integer(System.getProperty("jstatsd.UdpReceiveBuffer", "0"));
+            udpMaxDatagram = new Integer(System.getProperty("jstatsd.UdpMaxDatagram", "8192"));
+        } catch (NumberFormatException e) {
+            Logger.getLogger(Jstatsd.class.getName()).log(Level.SEVERE, "Invalid UdpReceiveBuffer/UdpMaxDatagram");
+            System.exit(1);
+        }
+        if (udpReceiveBuffer < 0 || udpMaxDatagram <= 0 || udpMaxDatagram > 65535) {
+            Logger.getLogger(Jstatsd.class.getName()).log(Level.SEVERE, "UdpReceiveBuffer can't be negative and UdpMaxDatagram must be 1 to 65535");
+            System.exit(1);
+        }
+        if (udpDispatchThreads <= 0 || udpDispatchQueue <= 0) {
+            Logger.getLogger(Jstatsd.class.getName()).log(Level.SEVERE, "UdpDispatchThreads and UdpDispatchQueue must be positive");
+            System.exit(1);
+        }
+        try {
+            int maxKeys = new Integer(System.getProperty("jstatsd.MaxKeys", "0"));
+            admission = new KeyAdmission(maxKeys, KeyAdmission.parseQuotas(System.getProperty("jstatsd.PrefixQuotas")));
+        } catch (NumberFormatException e) {
+            Logger.getLogger(Jstatsd.class.getName()).log(Level.SEVERE, "Invalid MaxKeys/PrefixQuotas: {0}", e.getMessage());
+            System.exit(1);
+        } catch (IllegalArgumentException e) {
+            Logger.getLogger(Jstatsd.class.getName()).log(Level.SEVERE, "MaxKeys can't be negative");
+            System.exit(1);
+        }
+        compressUpstream = System.getProperty("jstatsd.CompressUpstream", "No").equals("Yes");
+        relayUpstream = System.getProperty("jstatsd.RelayUpstream", "No").equals("Yes");
+        if (relayUpstream && compressUpstream) {
+            Logger.getLogger(Jstatsd.class.getName()).log(Level.SEVERE, "RelayUpstream and CompressUpstream can't be used together");
+            System.exit(1);
+        }
+        try {
+            proxyCoalesceMillis = new Integer(System.getProperty("jstatsd.ProxyCoalesceMillis", "0"));
+            proxyCoalesceLines = new Integer(System.getProperty("jstatsd.ProxyCoalesceLines", "100000"));
+        } catch (NumberFormatException e) {
+            Logger.getLogger(Jstatsd.class.getName()).log(Level.SEVERE, "Invalid ProxyCoalesceMillis/ProxyCoalesceLines");
+            System.exit(1);
+        }
+        if (proxyCoalesceMillis < 0 || proxyCoalesceLines <= 0) {
+            Logger.getLogger(Jstatsd.class.getName()).log(Level.SEVERE, "ProxyCoalesceMillis can't be negative and ProxyCoalesceLines must be positive");
+            System.exit(1);
+        }
+        deleteGauges = System.getProperty("jstatsd.DeleteGauges", "No").equals("Yes");
+        try {
+            gaugeIdleIntervals = new Integer(System.getProperty("jstatsd.GaugeIdleIntervals", "360"));
+            maxRetainedGauges = new Integer(System.getProperty("jstatsd.MaxRetainedGauges", "100000"));
+        } catch (NumberFormatException e) {
+            Logger.getLogger(Jstatsd.class.getName()).log(Level.SEVERE, "Invalid GaugeIdleIntervals or MaxRetainedGauges: {0}", e.getMessage());
+            System.exit(1);
+        }
+        if (gaugeIdleIntervals < 0 || maxRetainedGauges < 0) {
+            Logger.getLogger(Jstatsd.class.getName()).log(Level.SEVERE, "GaugeIdleIntervals and MaxRetainedGauges can't be negative");
+            System.exit(1);
+        }
+        gaugeValues.setLimits(gaugeIdleIntervals, maxRetainedGauges);
+        snapshotFile = System.getProperty("jstatsd.SnapshotFile", "").trim();
+        if (snapshotFile.length() == 0) {
+            snapshotFile = null;
+        }
+        captureFile = System.getProperty("jstatsd.CaptureFile", "").trim();
+        if (captureFile.length() == 0) {
+            captureFile = null;
+        }
+        archiveFile = System.getProperty("jstatsd.ArchiveFile", "").trim();
+        if (archiveFile.length() == 0) {
+            archiveFile = null;
+        }
+        try {
+            RelayPort = new Integer(System.getProperty("jstatsd.RelayPort", "0"));
+        } catch (NumberFormatException e) {
+            Logger.getLogger(Jstatsd.class.getName()).log(Level.SEVERE, "Invalid RelayPort: {0}", System.getProperty("jstatsd.RelayPort"));
+            System.exit(1);
+        }
+        String peerList = System.getProperty("jstatsd.ClusterPeers", "").trim();
+        if (peerList.length() > 0) {
+            String[] peers = null;
+            int batchMillis = 0;
+            try {
+                peers = Cluster.parsePeers(peerList);
+                batchMillis = new Integer(System.getProperty("jstatsd.ClusterBatchMillis", "200"));
+            } catch (NumberFormatException e) {
+                Logger.getLogger(Jstatsd.class.getName()).log(Level.SEVERE, "Invalid ClusterPeers/ClusterBatchMillis: {0}", e.getMessage());
+                System.exit(1);
+            }
+            int self = Arrays.asList(peers).indexOf(System.getProperty("jstatsd.ClusterSelf", "").trim());
+            if (self < 0) {
+                Logger.getLogger(Jstatsd.class.getName()).log(Level.SEVERE, "ClusterSelf must be one of ClusterPeers");
+                System.exit(1);
+            }
+            if (RelayPort <= 0 || relayUpstream || batchMillis <= 0) {
+                Logger.getLogger(Jstatsd.class.getName()).log(Level.SEVERE, "Cluster mode needs a RelayPort, a positive ClusterBatchMillis and no RelayUpstream");
+                System.exit(1);
+            }
+            cluster = new Cluster(peers, self, batchMillis);
+        }
+        try {
+            upstreamSyncMillis = new Integer(System.getProperty("jstatsd.UpstreamSyncMillis", "1000"));
+            CompressedProxyPort = new Integer(System.getProperty("jstatsd.CompressedProxyPort", "0"));
+        } catch (NumberFormatException e) {
+            Logger.getLogger(Jstatsd.class.getName()).log(Level.SEVERE, "Invalid UpstreamSyncMillis/CompressedProxyPort");
+            System.exit(1);
+        }
+        if (upstreamSyncMillis <= 0) {
+            Logger.getLogger(Jstatsd.class.getName()).log(Level.SEVERE, "UpstreamSyncMillis must be positive");
+            System.exit(1);
+        }
+        try {
+            topK = new Integer(System.getProperty("jstatsd.TopK", "20"));
+            topKSampling = new Integer(System.getProperty("jstatsd.TopKSampling", "64"));
+            AdminPort = new Integer(System.getProperty("jstatsd.AdminPort", "0"));
+        } catch (NumberFormatException e) {
+            Logger.getLogger(Jstatsd.class.getName()).log(Level.SEVERE, "Invalid TopK/TopKSampling/AdminPort");
+            System.exit(1);
+        }
+        offHeap = System.getProperty("jstatsd.OffHeap", "No").equals("Yes");
+        String dir = System.getProperty("jstatsd.OffHeapDir", "").trim();
+        offHeapDir = dir.length() > 0 ? new File(dir) : null;
+        try {
+            flushShards = new Integer(System.getProperty("jstatsd.FlushShards", "1"));
+        } catch (NumberFormatException e) {
+            Logger.getLogger(Jstatsd.class.getName()).log(Level.SEVERE, "Invalid FlushShards: {0}", System.getProperty("jstatsd.FlushShards"));
+            System.exit(1);
+        }
+        if (flushShards <= 0) {
+            Logger.getLogger(Jstatsd.class.getName()).log(Level.SEVERE, "FlushShards must be positive");
+            System.exit(1);
+        }
+        try {
+            timerReservoir = new Integer(System.getProperty("jstatsd.TimerReservoir", "0"));
+        } catch (NumberFormatException e) {
+            Logger.getLogger(Jstatsd.class.getName()).log(Level.SEVERE, "Invalid TimerReservoir: {0}", System.getProperty("jstatsd.TimerReservoir"));
+            System.exit(1);
+        }
+        if (timerReservoir < 0) {
+            Logger.getLogger(Jstatsd.class.getName()).log(Level.SEVERE, "TimerReservoir can't be negative");
+            System.exit(1);
+        }
+        packedTimers = System.getProperty("jstatsd.PackedTimers", "No").equals("Yes");
+        if (packedTimers && (timerReservoir > 0 || offHeap)) {
+            Logger.getLogger(Jstatsd.class.getName()).log(Level.SEVERE, "PackedTimers can't be used with TimerReservoir or OffHeap");
+            System.exit(1);
+        }
+        try {
+            highWater = new Integer(System.getProperty("jstatsd.HighWaterMB", "0")) * 1024L * 1024L;
+            highWaterSamples = new Integer(System.getProperty("jstatsd.HighWaterSamples", "" + Bucket.SUMMARY_SAMPLES));
+        } catch (NumberFormatException e) {
+            Logger.getLogger(Jstatsd.class.getName()).log(Level.SEVERE, "Invalid HighWaterMB or HighWaterSamples: {0}", e.getMessage());
+            System.exit(1);
+        }
+        if (highWater < 0 || highWaterSamples <= 0) {
+            Logger.getLogger(Jstatsd.class.getName()).log(Level.SEVERE, "HighWaterMB can't be negative and HighWaterSamples must be positive");
+            System.exit(1);
+        }
+        if (offHeap && (timerReservoir > 0 || highWater > 0)) {
+            Logger.getLogger(Jstatsd.class.getName()).log(Level.SEVERE, "OffHeap can't be used with TimerReservoir or HighWaterMB");
+            System.exit(1);
+        }
+        try {
+            offHeapKeys = new Integer(System.getProperty("jstatsd.OffHeapKeys", "100000"));
+        } catch (NumberFormatException e) {
+            Logger.getLogger(Jstatsd.class.getName()).log(Level.SEVERE, "Invalid OffHeapKeys: {0}", System.getProperty("jstatsd.OffHeapKeys"));
+            System.exit(1);
+        }
+        String tagFormat = System.getProperty("jstatsd.TagFormat", "graphite").trim();
+        if (!tagFormat.equals("graphite") && !tagFormat.equals("path")) {
+            Logger.getLogger(Jstatsd.class.getName()).log(Level.SEVERE, "Invalid TagFormat: {0}", tagFormat);
+            System.exit(1);
+        }
+        tagsAsPath = tagFormat.equals("path");
+        String rulesFile = System.getProperty("jstatsd.RulesFile", "").trim();
+        if (rulesFile.length() > 0) {
+            try {
+                rules = NameRules.load(rulesFile);
+            } catch (IOException e) {
+                Logger.getLogger(Jstatsd.class.getName()).log(Level.SEVERE, "Invalid RulesFile: {0}", e.getMessage());
+                System.exit(1);
+            }
+        }
+        try {
+            rollups = Rollup.parse(System.getProperty("jstatsd.Rollups"), (int) (delay / 1000));
+        } catch (NumberFormatException e) {
+            Logger.getLogger(Jstatsd.class.getName()).log(Level.SEVERE, "Invalid Rollups: {0}", e.getMessage());
+            System.exit(1);
+        }
+        try {
+            listeners = Pipeline.parse(System.getProperty("jstatsd.Listeners"), BackendHost, BackendPort);
+        } catch (NumberFormatException e) {
+            Logger.getLogger(Jstatsd.class.getName()).log(Level.SEVERE, "Invalid Listeners: {0}", e.getMessage());
+            System.exit(1);
+        }
+        for (int i = 0; i < listeners.size(); i++) {
+            int port = listeners.get(i).getPort();
+            boolean duplicated = port == UDPPort;
+            for (int j = 0; j < i; j++) {
+                duplicated |= listeners.get(j).getPort() == port;
+            }
+            if (duplicated) {
+                Logger.getLogger(Jstatsd.class.getName()).log(Level.SEVERE, "Listener port {0} already in use", "" + port);
+                System.exit(1);
+            }
+        }
+        if (topKSampling <= 0) {
+            Logger.getLogger(Jstatsd.class.getName()).log(Level.SEVERE, "TopKSampling must be positive");
+            System.exit(1);
+        }
         debug = System.getProperty("jstatsd.Debug")==null?false:System.getProperty("jstatsd.Debug").equals("Yes");
         setDebug(debug);
         Logger.getLogger(Jstatsd.class.getName()).log(Level.INFO, "UDPPort={0}", UDPPort);
@@ -182,7 +1153,37 @@ public class Jstatsd implements UDPConsumer, TCPConsumer {
         Logger.getLogger(Jstatsd.class.getName()).log(Level.INFO, "BackendPort={0}", BackendPort);
         Logger.getLogger(Jstatsd.class.getName()).log(Level.INFO, "delay={0}", delay);
         Logger.getLogger(Jstatsd.class.getName()).log(Level.INFO, "ProxyPort={0}", ProxyPort);
+        Logger.getLogger(Jstatsd.class.getName()).log(Level.INFO, "ProxyCoalesceMillis={0} ProxyCoalesceLines={1}", new Object[]{proxyCoalesceMillis, proxyCoalesceLines});
         Logger.getLogger(Jstatsd.class.getName()).log(Level.INFO, "Debug={0}", debug);
+        Logger.getLogger(Jstatsd.class.getName()).log(Level.INFO, "UdpDispatch={0}", udpDispatchMode == null ? "mina" : udpDispatchMode);
+        Logger.getLogger(Jstatsd.class.getName()).log(Level.INFO, "UdpReceiveBuffer={0} UdpMaxDatagram={1}", new Object[]{udpReceiveBuffer == 0 ? "default" : udpReceiveBuffer, udpMaxDatagram});
+        for (Pipeline l : listeners) {
+            Logger.getLogger(Jstatsd.class.getName()).log(Level.INFO, "Listener UDPPort={0} prefix={1} delay={2} backend={3}:{4}", new Object[]{"" + l.getPort(), l.getPrefix(), l.getDelay(), l.host, "" + l.backendPort});
+        }
+        Logger.getLogger(Jstatsd.class.getName()).log(Level.INFO, "MaxKeys={0}", admission.maxKeys);
+        Logger.getLogger(Jstatsd.class.getName()).log(Level.INFO, "TopK={0}", topK);
+        Logger.getLogger(Jstatsd.class.getName()).log(Level.INFO, "AdminPort={0}", AdminPort);
+        Logger.getLogger(Jstatsd.class.getName()).log(Level.INFO, "CompressUpstream={0}", compressUpstream);
+        Logger.getLogger(Jstatsd.class.getName()).log(Level.INFO, "CompressedProxyPort={0}", CompressedProxyPort);
+        Logger.getLogger(Jstatsd.class.getName()).log(Level.INFO, "RelayUpstream={0}", relayUpstream);
+        Logger.getLogger(Jstatsd.class.getName()).log(Level.INFO, "RelayPort={0}", RelayPort);
+        if (cluster != null) {
+            Logger.getLogger(Jstatsd.class.getName()).log(Level.INFO, "ClusterPeers={0} ClusterSelf={1}", new Object[]{Arrays.toString(cluster.getPeers()), cluster.getPeers()[cluster.getSelf()]});
+        }
+        Logger.getLogger(Jstatsd.class.getName()).log(Level.INFO, "ArchiveFile={0}", archiveFile);
+        Logger.getLogger(Jstatsd.class.getName()).log(Level.INFO, "SnapshotFile={0}", snapshotFile);
+        Logger.getLogger(Jstatsd.class.getName()).log(Level.INFO, "CaptureFile={0}", captureFile);
+        Logger.getLogger(Jstatsd.class.getName()).log(Level.INFO, "RulesFile={0}", rulesFile);
+        Logger.getLogger(Jstatsd.class.getName()).log(Level.INFO, "TagFormat={0}", tagFormat);
+        Logger.getLogger(Jstatsd.class.getName()).log(Level.INFO, "FlushShards={0}", flushShards);
+        Logger.getLogger(Jstatsd.class.getName()).log(Level.INFO, "TimerReservoir={0}", timerReservoir);
+        Logger.getLogger(Jstatsd.class.getName()).log(Level.INFO, "PackedTimers={0}", packedTimers ? "Yes" : "No");
+        Logger.getLogger(Jstatsd.class.getName()).log(Level.INFO, "HighWater={0} MB, {1} samples per compacted key", new Object[]{highWater / (1024 * 1024), highWaterSamples});
+        Logger.getLogger(Jstatsd.class.getName()).log(Level.INFO, "OffHeap={0}", offHeap ? (offHeapDir == null ? "direct" : offHeapDir) : "No");
+        for (Rollup r : rollups) {
+            Logger.getLogger(Jstatsd.class.getName()).log(Level.INFO, "Rollup={0}s prefix \"{1}\" {2}",
+                    new Object[]{r.getInterval(), r.getPrefix(), r.getBackend() == null ? "main backend" : r.getBackend().getConfig().getHost() + ":" + r.getBackend().getConfig().getPort()});
+        }
         if (ProxyPort==BackendPort && (BackendHost.equals("localhost")||BackendHost.equals("127.0.0.1"))) {
             Logger.getLogger(Jstatsd.class.getName()).log(Level.SEVERE, "Proxy == Backend. This is sooooo wrong");
             System.exit(1);
@@ -248,12 +1249,11 @@ public class Jstatsd implements UDPConsumer, TCPConsumer {
 
         final Jstatsd app = new Jstatsd();
         app.init();
-//        final Thread mainThread = Thread.currentThread();
-//        Runtime.getRuntime().addShutdownHook(new Thread() {
-//            @Override
-//            public void run() {
-//                app.shutDown();
-//            }
-//        });
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                app.shutDown();
+            }
+        });
     }
 }
@@ -0,0 +1,228 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.ideeli.utils.jstatsd;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Admission control for new keys on a bucket. Only consulted the first time a
+ * key shows up on a flush interval, so known keys never pay for it.
+ *
+ * A key is rejected when the bucket already holds maxKeys keys, or when it
+ * matches one of the configured prefixes and that prefix already used its
+ * quota. Rejections are counted until the next reset.
+ *
+ * Rejected keys are never added, so they come back on every sample. Once the
+ * bucket or a prefix is full, rejects() turns them down without locking,
+ * before the bucket takes any monitor.
+ *
+ * @author marc
+ */
+public class KeyAdmission {
+
+    public static final String DROPPED_PREFIX = "statsd.dropped.";
+    final int maxKeys;
+    final String[] prefixes;
+    final int[] quotas;
+    final String[] droppedNames;
+    int admitted = 0;
+    final int[] prefixAdmitted;
+    final AtomicLong rejected = new AtomicLong();
+    final AtomicLongArray prefixRejected;
+    // Set once the limits are reached, until reset
+    volatile boolean full = false;
+    final AtomicIntegerArray prefixFull;
+
+    /**
+     * @param maxKeys max keys per flush interval, 0 for no limit.
+     * @param prefixQuotas max keys per flush interval for each prefix.
+     */
+    public KeyAdmission(int maxKeys, Map<String, Integer> prefixQuotas) {
+        if (maxKeys < 0) {
+            throw new IllegalArgumentException();
+        }
+        this.maxKeys = maxKeys;
+        int n = prefixQuotas.size();
+        prefixes = new String[n];
+        quotas = new int[n];
+        droppedNames = new String[n];
+        int i = 0;
+        for (Map.Entry<String, Integer> quota : prefixQuotas.entrySet()) {
+            prefixes[i] = quota.getKey();
+            quotas[i] = quota.getValue();
+            droppedNames[i] = DROPPED_PREFIX + "prefix." + sanitize(quota.getKey());
+            i++;
+        }
+        prefixAdmitted = new int[n];
+        prefixRejected = new AtomicLongArray(n);
+        prefixFull = new AtomicIntegerArray(n);
+        reset();
+    }
+
+    /**
+     * Same limits, fresh counters. Each bucket needs its own.
+     */
+    public KeyAdmission(KeyAdmission config) {
+        this.maxKeys = config.maxKeys;
+        this.prefixes = config.prefixes;
+        this.quotas = config.quotas;
+        this.droppedNames = config.droppedNames;
+        prefixAdmitted = new int[prefixes.length];
+        prefixRejected = new AtomicLongArray(prefixes.length);
+        prefixFull = new AtomicIntegerArray(prefixes.length);
+        reset();
+    }
+
+    /**
+     * No limits at all.
+     */
+    public KeyAdmission() {
+        this(0, new LinkedHashMap<String, Integer>());
+    }
+
+    /**
+     * Parses a quota list like "app.debug.=1000,batch.=200".
+     */
+    public static Map<String, Integer> parseQuotas(String quotaList) throws NumberFormatException {
+        Map<String, Integer> result = new LinkedHashMap<String, Integer>();
+        if (quotaList == null) {
+            return result;
+        }
+        for (String entry : quotaList.split(",")) {
+            entry = entry.trim();
+            if (entry.length() == 0) {
+                continue;
+            }
+            int eq = entry.lastIndexOf('=');
+            if (eq <= 0) {
+                throw new NumberFormatException("Missing quota on " + entry);
+            }
+            int quota = Integer.parseInt(entry.substring(eq + 1).trim());
+            if (quota < 0) {
+                throw new NumberFormatException("Negative quota on " + entry);
+            }
+            result.put(entry.substring(0, eq).trim(), quota);
+        }
+        return result;
+    }
+
+    static String sanitize(String prefix) {
+        String clean = prefix;
+        while (clean.endsWith(".")) {
+            clean = clean.substring(0, clean.length() - 1);
+        }
+        return clean.replace('.', '_');
+    }
+
+    public boolean isUnlimited() {
+        return maxKeys == 0 && prefixes.length == 0;
+    }
+
+    /**
+     * Lock free check for a key not on the bucket, before trying to add it.
+     * Counts the rejection.
+     *
+     * @return true if the key would be rejected for sure.
+     */
+    public boolean rejects(String name) {
+        if (full) {
+            rejected.incrementAndGet();
+            int i = prefix(name);
+            if (i >= 0) {
+                prefixRejected.incrementAndGet(i);
+            }
+            return true;
+        }
+        if (prefixes.length == 0) {
+            return false;
+        }
+        int i = prefix(name);
+        if (i >= 0 && prefixFull.get(i) != 0) {
+            rejected.incrementAndGet();
+            prefixRejected.incrementAndGet(i);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Called once per new key.
+     *
+     * @return true if the key can be added to the bucket.
+     */
+    public synchronized boolean admit(String name) {
+        int i = prefix(name);
+        if (maxKeys > 0 && admitted >= maxKeys) {
+            rejected.incrementAndGet();
+            if (i >= 0) {
+                prefixRejected.incrementAndGet(i);
+            }
+            return false;
+        }
+        if (i >= 0) {
+            if (prefixAdmitted[i] >= quotas[i]) {
+                rejected.incrementAndGet();
+                prefixRejected.incrementAndGet(i);
+                return false;
+            }
+            if (++prefixAdmitted[i] >= quotas[i]) {
+                prefixFull.set(i, 1);
+            }
+        }
+        if (++admitted >= maxKeys && maxKeys > 0) {
+            full = true;
+        }
+        return true;
+    }
+
+    /**
+     * @return the first prefix the key matches, or -1.
+     */
+    private int prefix(String name) {
+        for (int i = 0; i < prefixes.length; i++) {
+            if (name.startsWith(prefixes[i])) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public synchronized int getAdmitted() {
+        return admitted;
+    }
+
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    /**
+     * Adds the rejection counters to the bucket as statsd.dropped.* counters.
+     */
+    public synchronized void report(Bucket bucket) {
+        if (isUnlimited()) {
+            return;
+        }
+        bucket.addInternal(DROPPED_PREFIX + "keys", rejected.get(), Bucket.Type.c);
+        for (int i = 0; i < prefixes.length; i++) {
+            bucket.addInternal(droppedNames[i], prefixRejected.get(i), Bucket.Type.c);
+        }
+    }
+
+    public synchronized void reset() {
+        admitted = 0;
+        rejected.set(0);
+        full = false;
+        for (int i = 0; i < prefixes.length; i++) {
+            prefixAdmitted[i] = 0;
+            prefixRejected.set(i, 0);
+            // A 0 quota is full from the start
+            prefixFull.set(i, quotas[i] == 0 ? 1 : 0);
+        }
+    }
+}
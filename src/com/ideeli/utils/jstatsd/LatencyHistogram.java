@@ -0,0 +1,103 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.ideeli.utils.jstatsd;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Durations in microseconds, counted on log linear buckets: exact below 16,
+ * then 8 buckets per power of two, so percentiles are within 12.5%. Max is
+ * exact. Recording is two atomic adds, safe from any thread.
+ *
+ * @author marc
+ */
+public class LatencyHistogram {
+
+    static final int LINEAR = 16;
+    static final int SUB_BITS = 3;
+    // Powers of two from 16us to 2^62us
+    static final int BUCKETS = LINEAR + (63 - 4) * (1 << SUB_BITS);
+    final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    final AtomicLong max = new AtomicLong();
+
+    static int index(long micros) {
+        if (micros < LINEAR) {
+            return (int) Math.max(0, micros);
+        }
+        int exp = 63 - Long.numberOfLeadingZeros(micros);
+        int sub = (int) (micros >>> (exp - SUB_BITS)) & ((1 << SUB_BITS) - 1);
+        return LINEAR + ((exp - 4) << SUB_BITS) + sub;
+    }
+
+    /**
+     * Middle of the values counted on a bucket.
+     */
+    static long value(int index) {
+        if (index < LINEAR) {
+            return index;
+        }
+        int exp = ((index - LINEAR) >> SUB_BITS) + 4;
+        int sub = (index - LINEAR) & ((1 << SUB_BITS) - 1);
+        long width = 1L << (exp - SUB_BITS);
+        return (1L << exp) + sub * width + width / 2;
+    }
+
+    public void record(long micros) {
+        counts.incrementAndGet(index(micros));
+        long m = max.get();
+        while (micros > m && !max.compareAndSet(m, micros)) {
+            m = max.get();
+        }
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        max.set(0);
+    }
+
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            count += counts.get(i);
+        }
+        return count;
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Percentile over several histograms, 0 if all are empty.
+     *
+     * @param pct 0 to 100.
+     */
+    public static long percentile(double pct, LatencyHistogram... histograms) {
+        long count = 0;
+        long max = 0;
+        for (LatencyHistogram h : histograms) {
+            count += h.getCount();
+            max = Math.max(max, h.getMax());
+        }
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(pct / 100.0 * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            for (LatencyHistogram h : histograms) {
+                seen += h.counts.get(i);
+            }
+            if (seen >= rank) {
+                // Never above what was actually seen
+                return Math.min(value(i), max);
+            }
+        }
+        return max;
+    }
+}
@@ -0,0 +1,319 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.ideeli.utils.jstatsd;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Drop and rename rules for metric names, applied on ingest and on the proxy.
+ *
+ * Rules are read once, one per line, and the first one matching wins:
+ *
+ * <pre>
+ * drop   prefix:app.debug.
+ * rename prefix:hosts.         servers.
+ * rename glob:servers.*.cpu    cpu.$1
+ * drop   regex:.*\.tmp\.[0-9]+
+ * </pre>
+ *
+ * Globs and regexes must match the whole name, a glob's * and ? never cross a
+ * dot and each * is a group. Rules are indexed on a trie by the literal
+ * prefix they start with, so a name is only tried against rules that can
+ * match it. Results are cached per name, so a known name costs one lookup.
+ *
+ * @author marc
+ */
+public class NameRules {
+
+    // Cache is dropped past this, so name churn can't grow it forever
+    static final int MAX_CACHED = 1 << 18;
+    // Cached result of dropped names, compared by identity
+    static final String DROP = new String("<drop>");
+    final Node root = new Node();
+    final ConcurrentHashMap<String, String> cache = new ConcurrentHashMap<String, String>();
+    final AtomicLong dropped = new AtomicLong();
+    int size = 0;
+
+    static class Node {
+
+        final HashMap<Character, Node> children = new HashMap<Character, Node>();
+        final List<Rule> rules = new ArrayList<Rule>();
+    }
+
+    static class Rule {
+
+        final int order;
+        final boolean drop;
+        final String prefix;
+        // Null on prefix rules
+        final Pattern pattern;
+        final String replacement;
+
+        Rule(int order, boolean drop, String prefix, Pattern pattern, String replacement) {
+            this.order = order;
+            this.drop = drop;
+            this.prefix = prefix;
+            this.pattern = pattern;
+            this.replacement = replacement;
+        }
+
+        /**
+         * @return the new name, DROP, or null if not matching.
+         */
+        String apply(String name) {
+            if (pattern == null) {
+                if (drop) {
+                    return DROP;
+                }
+                return replacement + name.substring(prefix.length());
+            }
+            Matcher m = pattern.matcher(name);
+            if (!m.matches()) {
+                return null;
+            }
+            if (drop) {
+                return DROP;
+            }
+            StringBuffer sb = new StringBuffer();
+            m.appendReplacement(sb, replacement);
+            return sb.toString();
+        }
+    }
+
+    /**
+     * No rules, every name kept as is.
+     */
+    public NameRules() {
+    }
+
+    public static NameRules load(String file) throws IOException {
+        NameRules rules = new NameRules();
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String line;
+            int n = 0;
+            while ((line = in.readLine()) != null) {
+                n++;
+                line = line.trim();
+                if (line.length() == 0 || line.startsWith("#")) {
+                    continue;
+                }
+                try {
+                    rules.add(line);
+                } catch (IllegalArgumentException ex) {
+                    throw new IOException(file + ":" + n + ": " + ex.getMessage());
+                }
+            }
+        } finally {
+            in.close();
+        }
+        return rules;
+    }
+
+    /**
+     * Adds a rule line, after the ones already there.
+     */
+    public void add(String line) {
+        String[] f = line.trim().split("\\s+");
+        boolean drop = f[0].equals("drop");
+        if (!(drop && f.length == 2) && !(f[0].equals("rename") && f.length == 3)) {
+            throw new IllegalArgumentException("Expected \"drop pattern\" or \"rename pattern replacement\": " + line);
+        }
+        String replacement = drop ? null : f[2];
+        int colon = f[1].indexOf(':');
+        String kind = colon > 0 ? f[1].substring(0, colon) : "";
+        String expr = f[1].substring(colon + 1);
+        Rule rule;
+        try {
+            if (kind.equals("prefix")) {
+                rule = new Rule(size, drop, expr, null, replacement);
+            } else if (kind.equals("glob")) {
+                rule = new Rule(size, drop, literalPrefix(expr, "*?"), Pattern.compile(globToRegex(expr)), replacement);
+            } else if (kind.equals("regex")) {
+                rule = new Rule(size, drop, regexPrefix(expr), Pattern.compile(expr), replacement);
+            } else {
+                throw new IllegalArgumentException("Unknown pattern type: " + f[1]);
+            }
+        } catch (PatternSyntaxException ex) {
+            throw new IllegalArgumentException(ex.getMessage());
+        }
+        Node node = root;
+        for (int i = 0; i < rule.prefix.length(); i++) {
+            Character c = rule.prefix.charAt(i);
+            Node next = node.children.get(c);
+            if (next == null) {
+                next = new Node();
+                node.children.put(c, next);
+            }
+            node = next;
+        }
+        node.rules.add(rule);
+        size++;
+        cache.clear();
+    }
+
+    static String literalPrefix(String expr, String special) {
+        int i = 0;
+        while (i < expr.length() && special.indexOf(expr.charAt(i)) < 0) {
+            i++;
+        }
+        return expr.substring(0, i);
+    }
+
+    static String globToRegex(String glob) {
+        StringBuilder sb = new StringBuilder();
+        int literal = 0;
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            if (c == '*' || c == '?') {
+                sb.append(Pattern.quote(glob.substring(literal, i)));
+                sb.append(c == '*' ? "([^.]*)" : "[^.]");
+                literal = i + 1;
+            }
+        }
+        sb.append(Pattern.quote(glob.substring(literal)));
+        return sb.toString();
+    }
+
+    /**
+     * Literal text every match of the regex starts with, conservatively: stops
+     * at the first construct that isn't a plain (or escaped) character.
+     */
+    static String regexPrefix(String regex) {
+        if (regex.replace("\\\\", "").replace("\\|", "").indexOf('|') >= 0) {
+            // Alternatives may start with anything
+            return "";
+        }
+        StringBuilder sb = new StringBuilder();
+        int i = regex.startsWith("^") ? 1 : 0;
+        while (i < regex.length()) {
+            char c = regex.charAt(i);
+            char literal;
+            int next;
+            if (c == '\\' && i + 1 < regex.length() && ".-_/:$^*+?()[]{}|\\".indexOf(regex.charAt(i + 1)) >= 0) {
+                literal = regex.charAt(i + 1);
+                next = i + 2;
+            } else if (".$^*+?()[]{}|\\".indexOf(c) < 0) {
+                literal = c;
+                next = i + 1;
+            } else {
+                break;
+            }
+            // A quantifier makes the last character optional
+            if (next < regex.length() && "*?{".indexOf(regex.charAt(next)) >= 0) {
+                break;
+            }
+            sb.append(literal);
+            i = next;
+        }
+        return sb.toString();
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return the name to use, or null if the metric must be dropped.
+     */
+    public String apply(String name) {
+        if (size == 0) {
+            return name;
+        }
+        String result = cache.get(name);
+        if (result == null) {
+            result = compute(name);
+            if (cache.size() >= MAX_CACHED) {
+                cache.clear();
+            }
+            cache.put(name, result);
+        }
+        if (result == DROP) {
+            dropped.incrementAndGet();
+            return null;
+        }
+        return result;
+    }
+
+    private String compute(String name) {
+        // Candidates are on the path of the name, try them in file order
+        List<Rule> candidates = new ArrayList<Rule>();
+        Node node = root;
+        for (int i = 0; node != null; i++) {
+            candidates.addAll(node.rules);
+            node = i < name.length() ? node.children.get(name.charAt(i)) : null;
+        }
+        Rule first = null;
+        String result = null;
+        for (Rule rule : candidates) {
+            if (first != null && rule.order > first.order) {
+                continue;
+            }
+            String r = rule.apply(name);
+            if (r != null) {
+                first = rule;
+                result = r;
+            }
+        }
+        return result == null ? name : result;
+    }
+
+    /**
+     * Applies the rules to Graphite plaintext lines ("name value timestamp").
+     *
+     * @return the lines kept, or null if none.
+     */
+    public String applyLines(String data) {
+        if (size == 0) {
+            return data;
+        }
+        StringBuilder sb = null;
+        int start = 0;
+        while (start < data.length()) {
+            int end = data.indexOf('\n', start);
+            if (end < 0) {
+                end = data.length();
+            }
+            int next = end + 1;
+            // A name never goes past its own line
+            int space = data.indexOf(' ', start);
+            if (space < 0 || space > end) {
+                space = end;
+            }
+            String name = apply(data.substring(start, space));
+            if (sb == null && (name == null || !name.regionMatches(0, data, start, space - start) || name.length() != space - start)) {
+                // First change, keep everything before it
+                sb = new StringBuilder(data.length());
+                sb.append(data, 0, start);
+            }
+            if (sb != null && name != null) {
+                sb.append(name).append(data, space, Math.min(next, data.length()));
+            }
+            start = next;
+        }
+        if (sb == null) {
+            return data;
+        }
+        return sb.length() > 0 ? sb.toString() : null;
+    }
+
+    /**
+     * Names dropped by the rules since the start.
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+}
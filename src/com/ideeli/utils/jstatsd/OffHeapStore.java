@@ -0,0 +1,645 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.ideeli.utils.jstatsd;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Aggregation store for a bucket living outside the Java heap, so millions of
+ * keys don't mean millions of long lived objects for the GC to walk.
+ *
+ * Keys go on an open addressing table (linear probing) of fixed size slots.
+ * Names are stored inline, as UTF-8, on a name arena. Counters keep their sum
+ * and gauges their value, and whether it was set or only added to, on the
+ * slot itself. Timer samples go on chunks of a sample arena, linked from the
+ * slot.
+ *
+ * Nothing is freed: a reset starts a new generation, slots from older ones
+ * count as empty, and the arenas are written again from the start. Memory
+ * only grows with the biggest interval seen. It's direct memory, or memory
+ * mapped from (already deleted) files on a given directory.
+ *
+ * Samples of different keys are added concurrently: each key is updated
+ * under one of a set of stripe locks, and new keys and chunks are handed out
+ * under a small arena lock. Growing the table or an arena, resets and
+ * whatever reads the whole store take every stripe.
+ *
+ * @author marc
+ */
+public class OffHeapStore {
+
+    /**
+     * Receives the store contents on a flush.
+     */
+    public interface Visitor {
+
+        void counter(String name, long sum) throws IOException;
+
+        void gauge(String name, long value) throws IOException;
+
+        /**
+         * @param samples sorted, only the first count are valid.
+         */
+        void timer(String name, long[] samples, int count) throws IOException;
+    }
+    // Slot: (unused), hash, name offset, name length, type, first chunk,
+    // sum (gauge value), count (1 if the gauge was set), last chunk. The
+    // generation is kept apart, on gens.
+    static final int SLOT = 48;
+    static final int HASH = 4;
+    static final int NAME = 8;
+    static final int NAME_LEN = 12;
+    static final int TYPE = 16;
+    static final int HEAD = 20;
+    static final int SUM = 24;
+    static final int COUNT = 32;
+    static final int TAIL = 40;
+    // Chunk: next chunk, samples used, samples
+    static final int CHUNK_SAMPLES = 32;
+    static final int CHUNK = 8 + 8 * CHUNK_SAMPLES;
+    static final int STRIPES = 64;
+    // slot() results besides an offset
+    static final int REJECTED = -1;
+    static final int FULL = -2;
+    final File dir;
+    ByteBuffer table;
+    int capacity;
+    int size = 0;
+    final int[] typeSizes = new int[Bucket.Type.values().length];
+    int generation = 1;
+    // Slot generations. A probe holds only its key's stripe, and reads slots
+    // inserted under other stripes: the volatile write of the generation,
+    // last, publishes the rest of the slot and its name.
+    AtomicIntegerArray gens;
+    ByteBuffer names;
+    int namesUsed = 0;
+    ByteBuffer chunks;
+    int chunksUsed = 0;
+    // Flush scratch, timer samples are sorted here
+    long[] scratch = new long[1024];
+    // A key's slot and chunks are written holding its stripe. Growing,
+    // resetting or reading the store takes them all.
+    final ReentrantLock[] stripes = new ReentrantLock[STRIPES];
+    // Guards size, typeSizes, namesUsed and chunksUsed
+    final Object arena = new Object();
+
+    /**
+     * @param keys keys expected per interval.
+     * @param dir directory for the memory mapped files, null for direct
+     * memory.
+     */
+    public OffHeapStore(int keys, File dir) throws IOException {
+        this.dir = dir;
+        capacity = 1024;
+        while (capacity * 3 < keys * 4) {
+            capacity *= 2;
+        }
+        table = allocate(capacity * SLOT);
+        gens = new AtomicIntegerArray(capacity);
+        names = allocate(Math.max(64 * 1024, keys * 32));
+        chunks = allocate(1024 * CHUNK);
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+    }
+
+    ByteBuffer allocate(int bytes) throws IOException {
+        if (bytes < 0) {
+            throw new IOException("Off heap store too big");
+        }
+        if (dir == null) {
+            return ByteBuffer.allocateDirect(bytes);
+        }
+        File file = File.createTempFile("jstatsd", ".store", dir);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(bytes);
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, bytes);
+        } finally {
+            raf.close();
+            // The mapping stays valid
+            file.delete();
+        }
+    }
+
+    ByteBuffer grow(ByteBuffer old, int used, int needed) throws IOException {
+        long size = old.capacity();
+        while (size < needed) {
+            size *= 2;
+        }
+        ByteBuffer bigger = allocate((int) Math.min(size, Integer.MAX_VALUE));
+        ByteBuffer src = old.duplicate();
+        src.position(0);
+        src.limit(used);
+        bigger.put(src);
+        return bigger;
+    }
+
+    static int hash(String name, Bucket.Type type) {
+        int h = name.hashCode() * 31 + type.ordinal();
+        h ^= h >>> 16;
+        return h * 0x9E3779B9;
+    }
+
+    /**
+     * @return the slot index, or -(free slot + 1) if not there.
+     */
+    int find(String name, Bucket.Type type, int h) {
+        int mask = capacity - 1;
+        int i = h & mask;
+        while (true) {
+            int at = i * SLOT;
+            if (gens.get(i) != generation) {
+                return -(i + 1);
+            }
+            if (table.getInt(at + HASH) == h && table.getInt(at + TYPE) == type.ordinal() && nameEquals(at, name)) {
+                return i;
+            }
+            i = (i + 1) & mask;
+        }
+    }
+
+    boolean nameEquals(int at, String name) {
+        int off = table.getInt(at + NAME);
+        int len = table.getInt(at + NAME_LEN);
+        if (len == name.length()) {
+            // Plain ASCII, the usual case, compared without encoding
+            int i = 0;
+            while (i < len && name.charAt(i) < 0x80 && names.get(off + i) == name.charAt(i)) {
+                i++;
+            }
+            if (i == len) {
+                return true;
+            }
+            if (name.charAt(i) < 0x80) {
+                return false;
+            }
+        }
+        byte[] bytes = utf8(name);
+        if (bytes.length != len) {
+            return false;
+        }
+        for (int i = 0; i < len; i++) {
+            if (names.get(off + i) != bytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static byte[] utf8(String name) {
+        try {
+            return name.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    String name(int at) {
+        byte[] bytes = new byte[table.getInt(at + NAME_LEN)];
+        ByteBuffer src = names.duplicate();
+        src.position(table.getInt(at + NAME));
+        src.get(bytes);
+        try {
+            return new String(bytes, "UTF-8");
+        } catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Adds a sample.
+     *
+     * @param admission consulted on new keys, null to skip it.
+     */
+    public void add(String name, long value, Bucket.Type type, KeyAdmission admission) {
+        if (type == Bucket.Type.g) {
+            addGauge(name, value, false, admission);
+            return;
+        }
+        int h = hash(name, type);
+        ReentrantLock stripe = stripes[h & (STRIPES - 1)];
+        try {
+            while (true) {
+                stripe.lock();
+                try {
+                    int at = slot(name, type, h, admission);
+                    if (at == REJECTED) {
+                        return;
+                    }
+                    if (at != FULL && (type != Bucket.Type.ms || append(at, value))) {
+                        if (type == Bucket.Type.ms) {
+                            table.putLong(at + COUNT, table.getLong(at + COUNT) + 1);
+                        }
+                        table.putLong(at + SUM, table.getLong(at + SUM) + value);
+                        return;
+                    }
+                } finally {
+                    stripe.unlock();
+                }
+                makeRoom(name);
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(Jstatsd.class.getName()).log(Level.SEVERE, "Off heap store full, sample dropped", ex);
+        }
+    }
+
+    /**
+     * Sets a gauge, or adds to it if delta.
+     *
+     * @param admission consulted on new keys, null to skip it.
+     */
+    public void addGauge(String name, long value, boolean delta, KeyAdmission admission) {
+        int h = hash(name, Bucket.Type.g);
+        ReentrantLock stripe = stripes[h & (STRIPES - 1)];
+        try {
+            while (true) {
+                stripe.lock();
+                try {
+                    int at = slot(name, Bucket.Type.g, h, admission);
+                    if (at == REJECTED) {
+                        return;
+                    }
+                    if (at != FULL) {
+                        if (delta) {
+                            table.putLong(at + SUM, table.getLong(at + SUM) + value);
+                        } else {
+                            table.putLong(at + SUM, value);
+                            table.putLong(at + COUNT, 1);
+                        }
+                        return;
+                    }
+                } finally {
+                    stripe.unlock();
+                }
+                makeRoom(name);
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(Jstatsd.class.getName()).log(Level.SEVERE, "Off heap store full, sample dropped", ex);
+        }
+    }
+
+    /**
+     * Called holding the key's stripe.
+     *
+     * @return offset of the key's slot, inserted if new, REJECTED if not
+     * admitted, or FULL if the table or the name arena have to grow first.
+     */
+    int slot(String name, Bucket.Type type, int h, KeyAdmission admission) {
+        int slot = find(name, type, h);
+        if (slot >= 0) {
+            return slot * SLOT;
+        }
+        if (admission != null && admission.rejects(name)) {
+            return REJECTED;
+        }
+        synchronized (arena) {
+            byte[] bytes = utf8(name);
+            if ((size + 1) * 4 > capacity * 3 || namesUsed + bytes.length > names.capacity()) {
+                return FULL;
+            }
+            if (admission != null && !admission.admit(name)) {
+                return REJECTED;
+            }
+            // Another key may have taken the free slot meanwhile
+            slot = find(name, type, h);
+            return insert(-slot - 1, bytes, type, h) * SLOT;
+        }
+    }
+
+    /**
+     * Called holding the arena lock. The generation goes last, so the slot
+     * looks empty to other stripes until it's complete, and is then seen
+     * whole.
+     */
+    int insert(int slot, byte[] bytes, Bucket.Type type, int h) {
+        ByteBuffer dst = names.duplicate();
+        dst.position(namesUsed);
+        dst.put(bytes);
+        int at = slot * SLOT;
+        table.putInt(at + HASH, h);
+        table.putInt(at + NAME, namesUsed);
+        table.putInt(at + NAME_LEN, bytes.length);
+        table.putInt(at + TYPE, type.ordinal());
+        table.putInt(at + HEAD, -1);
+        table.putLong(at + SUM, 0);
+        table.putLong(at + COUNT, 0);
+        table.putInt(at + TAIL, -1);
+        gens.set(slot, generation);
+        namesUsed += bytes.length;
+        size++;
+        typeSizes[type.ordinal()]++;
+        return slot;
+    }
+
+    /**
+     * Called holding the key's stripe.
+     *
+     * @return false if the sample arena has to grow first.
+     */
+    boolean append(int at, long value) {
+        int tail = table.getInt(at + TAIL);
+        if (tail < 0 || chunks.getInt(tail + 4) == CHUNK_SAMPLES) {
+            int chunk;
+            synchronized (arena) {
+                if (chunksUsed + CHUNK > chunks.capacity()) {
+                    return false;
+                }
+                chunk = chunksUsed;
+                chunksUsed += CHUNK;
+            }
+            chunks.putInt(chunk, -1);
+            chunks.putInt(chunk + 4, 0);
+            if (tail < 0) {
+                table.putInt(at + HEAD, chunk);
+            } else {
+                chunks.putInt(tail, chunk);
+            }
+            table.putInt(at + TAIL, chunk);
+            tail = chunk;
+        }
+        int used = chunks.getInt(tail + 4);
+        chunks.putLong(tail + 8 + 8 * used, value);
+        chunks.putInt(tail + 4, used + 1);
+        return true;
+    }
+
+    void lockAll() {
+        for (ReentrantLock stripe : stripes) {
+            stripe.lock();
+        }
+    }
+
+    void unlockAll() {
+        for (int i = STRIPES - 1; i >= 0; i--) {
+            stripes[i].unlock();
+        }
+    }
+
+    /**
+     * Grows whatever an add of the key found full, with no adds going on.
+     */
+    void makeRoom(String name) throws IOException {
+        lockAll();
+        try {
+            if ((size + 1) * 4 > capacity * 3) {
+                rehash();
+            }
+            int bytes = utf8(name).length;
+            if (namesUsed + bytes > names.capacity()) {
+                names = grow(names, namesUsed, namesUsed + bytes);
+            }
+            if (chunksUsed + CHUNK > chunks.capacity()) {
+                chunks = grow(chunks, chunksUsed, chunksUsed + CHUNK);
+            }
+        } finally {
+            unlockAll();
+        }
+    }
+
+    void rehash() throws IOException {
+        ByteBuffer old = table;
+        AtomicIntegerArray oldGens = gens;
+        int oldCapacity = capacity;
+        table = allocate(capacity * 2 * SLOT);
+        gens = new AtomicIntegerArray(capacity * 2);
+        capacity *= 2;
+        int mask = capacity - 1;
+        ByteBuffer src = old.duplicate();
+        ByteBuffer dst = table.duplicate();
+        for (int i = 0; i < oldCapacity; i++) {
+            int at = i * SLOT;
+            if (oldGens.get(i) != generation) {
+                continue;
+            }
+            int j = old.getInt(at + HASH) & mask;
+            while (gens.get(j) == generation) {
+                j = (j + 1) & mask;
+            }
+            src.limit(at + SLOT);
+            src.position(at);
+            dst.position(j * SLOT);
+            dst.put(src);
+            src.limit(src.capacity());
+            gens.set(j, generation);
+        }
+    }
+
+    /**
+     * Forgets everything, keeping the memory for the next interval.
+     */
+    public void reset() {
+        lockAll();
+        try {
+            generation++;
+            if (generation == 0) {
+                // Wrapped, old slots could look current
+                gens = new AtomicIntegerArray(capacity);
+                generation = 1;
+            }
+            size = 0;
+            Arrays.fill(typeSizes, 0);
+            namesUsed = 0;
+            chunksUsed = 0;
+        } finally {
+            unlockAll();
+        }
+    }
+
+    public int size() {
+        synchronized (arena) {
+            return size;
+        }
+    }
+
+    public int size(Bucket.Type type) {
+        synchronized (arena) {
+            return typeSizes[type.ordinal()];
+        }
+    }
+
+    /**
+     * Off heap bytes in use by the table and the arenas.
+     */
+    public long getCapacityBytes() {
+        lockAll();
+        try {
+            return (long) table.capacity() + names.capacity() + chunks.capacity();
+        } finally {
+            unlockAll();
+        }
+    }
+
+    /**
+     * Walks the store, counters first, then gauges and timers.
+     */
+    public void visit(Visitor visitor) throws IOException {
+        lockAll();
+        try {
+            for (Bucket.Type type : new Bucket.Type[]{Bucket.Type.c, Bucket.Type.g, Bucket.Type.ms}) {
+                for (int i = 0; i < capacity; i++) {
+                    int at = i * SLOT;
+                    if (gens.get(i) != generation || table.getInt(at + TYPE) != type.ordinal()) {
+                        continue;
+                    }
+                    switch (type) {
+                        case c:
+                            visitor.counter(name(at), table.getLong(at + SUM));
+                            break;
+                        case g:
+                            visitor.gauge(name(at), table.getLong(at + SUM));
+                            break;
+                        case ms:
+                        default:
+                            int n = samples(at);
+                            Arrays.sort(scratch, 0, n);
+                            visitor.timer(name(at), scratch, n);
+                    }
+                }
+            }
+        } finally {
+            unlockAll();
+        }
+    }
+
+    /**
+     * Walks the keys of the given types holding one stripe at a time, so
+     * ingest of the other stripes goes on. Timers report their sample count.
+     */
+    public void visitKeys(Bucket.KeyVisitor visitor, Set<Bucket.Type> types) {
+        for (int s = 0; s < STRIPES; s++) {
+            ReentrantLock stripe = stripes[s];
+            stripe.lock();
+            try {
+                // The table can't be replaced while a stripe is held
+                for (int i = 0; i < capacity; i++) {
+                    int at = i * SLOT;
+                    if (gens.get(i) != generation || (table.getInt(at + HASH) & (STRIPES - 1)) != s) {
+                        continue;
+                    }
+                    Bucket.Type type = Bucket.Type.values()[table.getInt(at + TYPE)];
+                    if (!types.contains(type)) {
+                        continue;
+                    }
+                    switch (type) {
+                        case c:
+                            visitor.counter(name(at), table.getLong(at + SUM));
+                            break;
+                        case g:
+                            visitor.gauge(name(at), table.getLong(at + SUM), table.getLong(at + COUNT) != 0);
+                            break;
+                        case ms:
+                        default:
+                            visitor.timer(name(at), table.getLong(at + COUNT));
+                    }
+                }
+            } finally {
+                stripe.unlock();
+            }
+        }
+    }
+
+    /**
+     * Copies the timer samples of a slot on the scratch array.
+     */
+    int samples(int at) {
+        long count = table.getLong(at + COUNT);
+        if (scratch.length < count) {
+            scratch = new long[(int) Math.max(count, scratch.length * 2L)];
+        }
+        int n = 0;
+        for (int chunk = table.getInt(at + HEAD); chunk >= 0; chunk = chunks.getInt(chunk)) {
+            int used = chunks.getInt(chunk + 4);
+            for (int i = 0; i < used; i++) {
+                scratch[n++] = chunks.getLong(chunk + 8 + 8 * i);
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Heap copy of the counters.
+     */
+    public Map<String, AtomicLong> counters() {
+        lockAll();
+        try {
+            Map<String, AtomicLong> result = new HashMap<String, AtomicLong>();
+            for (int i = 0; i < capacity; i++) {
+                int at = i * SLOT;
+                if (gens.get(i) == generation && table.getInt(at + TYPE) == Bucket.Type.c.ordinal()) {
+                    result.put(name(at), new AtomicLong(table.getLong(at + SUM)));
+                }
+            }
+            return result;
+        } finally {
+            unlockAll();
+        }
+    }
+
+    /**
+     * Heap copy of the gauges.
+     */
+    public Map<String, Bucket.Gauge> gauges() {
+        lockAll();
+        try {
+            Map<String, Bucket.Gauge> result = new HashMap<String, Bucket.Gauge>();
+            for (int i = 0; i < capacity; i++) {
+                int at = i * SLOT;
+                if (gens.get(i) == generation && table.getInt(at + TYPE) == Bucket.Type.g.ordinal()) {
+                    Bucket.Gauge gauge = new Bucket.Gauge();
+                    if (table.getLong(at + COUNT) != 0) {
+                        gauge.set(table.getLong(at + SUM));
+                    } else {
+                        gauge.add(table.getLong(at + SUM));
+                    }
+                    result.put(name(at), gauge);
+                }
+            }
+            return result;
+        } finally {
+            unlockAll();
+        }
+    }
+
+    /**
+     * Heap copy of the timers.
+     */
+    public Map<String, LinkedList<Long>> timers() {
+        lockAll();
+        try {
+            Map<String, LinkedList<Long>> result = new HashMap<String, LinkedList<Long>>();
+            for (int i = 0; i < capacity; i++) {
+                int at = i * SLOT;
+                if (gens.get(i) != generation || table.getInt(at + TYPE) != Bucket.Type.ms.ordinal()) {
+                    continue;
+                }
+                LinkedList<Long> lst = new LinkedList<Long>();
+                int n = samples(at);
+                for (int j = 0; j < n; j++) {
+                    lst.add(scratch[j]);
+                }
+                result.put(name(at), lst);
+            }
+            return result;
+        } finally {
+            unlockAll();
+        }
+    }
+}
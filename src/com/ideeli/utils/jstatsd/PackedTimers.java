@@ -0,0 +1,396 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.ideeli.utils.jstatsd;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Timer samples packed on byte chunks, around 2 bytes per sample instead of
+ * the 40 of a boxed sample on a list, with every sample kept: stats stay
+ * exact.
+ *
+ * Each key has a chain of chunks holding the difference with its previous
+ * sample as a zigzag varint, so timings of similar size take a byte or two.
+ * Chunks double from 32 to 256 bytes, so keys with few samples stay small.
+ *
+ * Chunks are cut from 64 KB slabs, through a fixed set of arenas picked by
+ * thread id, so writers seldom contend allocating them and the number of
+ * threads doesn't change how many slabs are half used (a key's chain is
+ * appended under its own monitor, and may go through chunks cut by several
+ * arenas). reset() hands every slab back for the next interval: after the
+ * first intervals no memory is allocated for samples. Late writers still
+ * holding a chain from before the reset find it retired and go on the new
+ * ones, so they never write on a slab handed back. Once MAX_SLABS are taken,
+ * samples needing a new chunk are dropped and counted until the next reset.
+ *
+ * @author marc
+ */
+public class PackedTimers {
+
+    public interface Visitor {
+
+        /**
+         * @param samples sorted, only the first count are valid.
+         */
+        void timer(String name, long[] samples, int count) throws IOException;
+    }
+
+    /**
+     * Samples of a key. A chunk address is its slab on the high bits and its
+     * offset on the low ones.
+     */
+    public static class Chain {
+
+        int head = -1;
+        int tail = -1;
+        int tailSize = 0;
+        int tailUsed = 0;
+        int count = 0;
+        long last = 0;
+        // Its slabs were handed back, set under its monitor
+        boolean retired = false;
+
+        public synchronized int getCount() {
+            return count;
+        }
+    }
+
+    /**
+     * Slab chunks are being cut from, used under its monitor.
+     */
+    static class Arena {
+
+        int generation = -1;
+        int slab = -1;
+        int pos = SLAB;
+    }
+    static final int SLAB_BITS = 16;
+    static final int SLAB = 1 << SLAB_BITS;
+    // Addresses must stay positive
+    static final int MAX_SLABS = 1 << (31 - SLAB_BITS);
+    static final int FIRST_CHUNK = 32;
+    static final int LAST_CHUNK = 256;
+    // Next chunk address and bytes used
+    static final int HEADER = 8;
+    static final int ARENAS = 16;
+    volatile byte[][] slabs = new byte[4][];
+    // Guarded by this
+    int slabCount = 0;
+    int[] free = new int[4];
+    int freeCount = 0;
+    // Slabs taken this generation
+    int[] taken = new int[4];
+    int takenCount = 0;
+    // Bumped on reset, so arenas drop their slab
+    volatile int generation = 0;
+    final Arena[] arenas = new Arena[ARENAS];
+    volatile ConcurrentHashMap<String, Chain> chains = new ConcurrentHashMap<String, Chain>();
+    final AtomicLong chunkBytes = new AtomicLong();
+    // Samples with no slab left for them, this interval
+    final AtomicLong dropped = new AtomicLong();
+
+    public PackedTimers() {
+        for (int i = 0; i < ARENAS; i++) {
+            arenas[i] = new Arena();
+        }
+    }
+
+    /**
+     * @param admission null to skip admission control.
+     */
+    public void add(String name, long value, KeyAdmission admission) {
+        Arena arena = arenas[(int) Thread.currentThread().getId() & (ARENAS - 1)];
+        while (true) {
+            ConcurrentHashMap<String, Chain> map = chains;
+            Chain chain = map.get(name);
+            if (chain == null) {
+                if (admission != null && admission.rejects(name)) {
+                    return;
+                }
+                synchronized (map) {
+                    if (map != chains) {
+                        // Reset meanwhile
+                        continue;
+                    }
+                    chain = map.get(name);
+                    if (chain == null) {
+                        if (admission != null && !admission.admit(name)) {
+                            return;
+                        }
+                        chain = new Chain();
+                        map.put(name, chain);
+                    }
+                }
+            }
+            synchronized (chain) {
+                if (!chain.retired) {
+                    if (!append(chain, value, arena)) {
+                        dropped.incrementAndGet();
+                    }
+                    return;
+                }
+            }
+            // Reset meanwhile, the sample goes on the next interval
+        }
+    }
+
+    /**
+     * @return false if there was no room for a new chunk.
+     */
+    private boolean append(Chain c, long value, Arena arena) {
+        long delta = value - c.last;
+        long zz = (delta << 1) ^ (delta >> 63);
+        int len = 1;
+        for (long v = zz >>> 7; v != 0; v >>>= 7) {
+            len++;
+        }
+        if (c.tail < 0 || c.tailUsed + len > c.tailSize - HEADER) {
+            int size = c.tail < 0 ? FIRST_CHUNK : Math.min(LAST_CHUNK, c.tailSize * 2);
+            int chunk = allocate(arena, size);
+            if (chunk < 0) {
+                return false;
+            }
+            byte[] slab = slabs[chunk >>> SLAB_BITS];
+            putInt(slab, chunk & (SLAB - 1), -1);
+            putInt(slab, (chunk & (SLAB - 1)) + 4, 0);
+            if (c.tail < 0) {
+                c.head = chunk;
+            } else {
+                putInt(slabs[c.tail >>> SLAB_BITS], c.tail & (SLAB - 1), chunk);
+            }
+            c.tail = chunk;
+            c.tailSize = size;
+            c.tailUsed = 0;
+        }
+        byte[] slab = slabs[c.tail >>> SLAB_BITS];
+        int offset = c.tail & (SLAB - 1);
+        int pos = offset + HEADER + c.tailUsed;
+        while ((zz & ~0x7FL) != 0) {
+            slab[pos++] = (byte) ((zz & 0x7F) | 0x80);
+            zz >>>= 7;
+        }
+        slab[pos] = (byte) zz;
+        c.tailUsed += len;
+        putInt(slab, offset + 4, c.tailUsed);
+        c.last = value;
+        c.count++;
+        return true;
+    }
+
+    /**
+     * @return the chunk address, or -1 if every slab is taken.
+     */
+    private int allocate(Arena arena, int size) {
+        int chunk;
+        synchronized (arena) {
+            int current = generation;
+            if (arena.generation != current || arena.pos + size > SLAB) {
+                int slab = takeSlab();
+                if (slab < 0) {
+                    return -1;
+                }
+                arena.slab = slab;
+                arena.pos = 0;
+                arena.generation = current;
+            }
+            chunk = (arena.slab << SLAB_BITS) | arena.pos;
+            arena.pos += size;
+        }
+        chunkBytes.addAndGet(size);
+        return chunk;
+    }
+
+    /**
+     * @return a slab for this generation, or -1 if MAX_SLABS are taken.
+     */
+    private synchronized int takeSlab() {
+        int slab;
+        if (freeCount > 0) {
+            slab = free[--freeCount];
+        } else {
+            if (slabCount == MAX_SLABS) {
+                return -1;
+            }
+            byte[][] s = slabs;
+            if (slabCount == s.length) {
+                s = Arrays.copyOf(s, slabCount * 2);
+            }
+            s[slabCount] = new byte[SLAB];
+            slabs = s;
+            slab = slabCount++;
+        }
+        if (takenCount == taken.length) {
+            taken = Arrays.copyOf(taken, takenCount * 2);
+        }
+        taken[takenCount++] = slab;
+        return slab;
+    }
+
+    /**
+     * Forgets every sample and hands the slabs back, for the next interval.
+     * Called on a bucket after flushing it. Appends in progress finish first,
+     * later ones start the next interval.
+     */
+    public void reset() {
+        ConcurrentHashMap<String, Chain> old;
+        int[] retired;
+        synchronized (this) {
+            // Arenas take new slabs from now on. Bumped first: whoever sees
+            // the new chains sees it too
+            generation++;
+            retired = Arrays.copyOf(taken, takenCount);
+            takenCount = 0;
+            chunkBytes.set(0);
+            dropped.set(0);
+            old = chains;
+            chains = new ConcurrentHashMap<String, Chain>(Bucket.capacity(old.size()));
+        }
+        // Not holding this, appends take it for slabs while holding a chain
+        synchronized (old) {
+            for (Chain c : old.values()) {
+                synchronized (c) {
+                    c.retired = true;
+                }
+            }
+        }
+        synchronized (this) {
+            if (free.length < freeCount + retired.length) {
+                free = Arrays.copyOf(free, Math.max(slabs.length, freeCount + retired.length));
+            }
+            // Lowest first
+            Arrays.sort(retired);
+            for (int i = retired.length - 1; i >= 0; i--) {
+                free[freeCount++] = retired[i];
+            }
+        }
+    }
+
+    public Map<String, Chain> getChains() {
+        return chains;
+    }
+
+    public int size() {
+        return chains.size();
+    }
+
+    /**
+     * Bytes on chunks this interval.
+     */
+    public long getChunkBytes() {
+        return chunkBytes.get();
+    }
+
+    /**
+     * Samples dropped this interval, every slab being taken.
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Adds the samples dropped this interval to the bucket.
+     */
+    public void report(Bucket bucket) {
+        long n = dropped.get();
+        if (n > 0) {
+            bucket.addInternal(KeyAdmission.DROPPED_PREFIX + "packed_timers", n, Bucket.Type.c);
+        }
+    }
+
+    /**
+     * Bytes on slabs, used or not.
+     */
+    public synchronized long getSlabBytes() {
+        return (long) slabCount * SLAB;
+    }
+
+    /**
+     * Decodes and sorts the samples of each chain, reusing one array.
+     */
+    public void visit(Iterable<Map.Entry<String, Chain>> entries, Visitor visitor) throws IOException {
+        long[] samples = new long[16];
+        for (Map.Entry<String, Chain> e : entries) {
+            Chain c = e.getValue();
+            int count;
+            synchronized (c) {
+                count = c.count;
+                if (samples.length < count) {
+                    samples = new long[Math.max(count, samples.length * 2)];
+                }
+                decode(c, samples);
+            }
+            Arrays.sort(samples, 0, count);
+            visitor.timer(e.getKey(), samples, count);
+        }
+    }
+
+    public void visit(Visitor visitor) throws IOException {
+        visit(chains.entrySet(), visitor);
+    }
+
+    private void decode(Chain c, long[] into) {
+        byte[][] s = slabs;
+        int n = 0;
+        long value = 0;
+        for (int chunk = c.head; chunk >= 0 && n < c.count;) {
+            byte[] slab = s[chunk >>> SLAB_BITS];
+            int offset = chunk & (SLAB - 1);
+            int pos = offset + HEADER;
+            int end = pos + getInt(slab, offset + 4);
+            while (pos < end) {
+                long zz = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = slab[pos++];
+                    zz |= (long) (b & 0x7F) << shift;
+                    shift += 7;
+                } while (b < 0);
+                value += (zz >>> 1) ^ -(zz & 1);
+                into[n++] = value;
+            }
+            chunk = getInt(slab, offset);
+        }
+    }
+
+    /**
+     * Heap copy of the samples, sorted.
+     */
+    public Map<String, LinkedList<Long>> copy() {
+        final Map<String, LinkedList<Long>> copy = new HashMap<String, LinkedList<Long>>();
+        try {
+            visit(new Visitor() {
+                @Override
+                public void timer(String name, long[] samples, int count) {
+                    LinkedList<Long> lst = new LinkedList<Long>();
+                    for (int i = 0; i < count; i++) {
+                        lst.add(samples[i]);
+                    }
+                    copy.put(name, lst);
+                }
+            });
+        } catch (IOException ex) {
+            // Not thrown by this visitor
+        }
+        return copy;
+    }
+
+    private static void putInt(byte[] b, int pos, int v) {
+        b[pos] = (byte) (v >>> 24);
+        b[pos + 1] = (byte) (v >>> 16);
+        b[pos + 2] = (byte) (v >>> 8);
+        b[pos + 3] = (byte) v;
+    }
+
+    private static int getInt(byte[] b, int pos) {
+        return (b[pos] << 24) | ((b[pos + 1] & 0xFF) << 16) | ((b[pos + 2] & 0xFF) << 8) | (b[pos + 3] & 0xFF);
+    }
+}
@@ -0,0 +1,227 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.ideeli.utils.jstatsd;
+
+import com.ideeli.utils.jstatsd.backends.GraphiteBackend;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An extra UDP port with its own name prefix, flush interval and Graphite
+ * backend, so one process can serve several teams.
+ *
+ * It shares the UDP listener threads, name rules, tags and key admission
+ * limits with the main port, everything else is its own: the bucket double
+ * buffer, the flush scheduler, the connection pool and the flush timings.
+ * Snapshots, rollups and relaying are only done for the main port.
+ *
+ * @author marc
+ */
+public class Pipeline {
+
+    final int port;
+    final String prefix;
+    final long delay;
+    final String host;
+    final int backendPort;
+    Jstatsd jstatsd;
+    GraphiteBackend backend;
+    final Bucket[] bucket = new Bucket[2];
+    int currentBucket = 0;
+    final Object bucketLock = new Object();
+    // Serializes flushes, compactions and the final flush
+    final Object flushLock = new Object();
+    boolean shuttingDown = false;
+    final AtomicBoolean compactPending = new AtomicBoolean();
+    final FlushTimings timings = new FlushTimings();
+    final RetainedGauges gaugeValues = new RetainedGauges();
+    Timer scheduler;
+    volatile int lastFlushKeys = 0;
+    volatile String lastFlushResult = "none";
+
+    public Pipeline(int port, String prefix, long delay, String host, int backendPort) {
+        if (delay <= 0) {
+            throw new IllegalArgumentException();
+        }
+        this.port = port;
+        this.prefix = prefix;
+        this.delay = delay;
+        this.host = host;
+        this.backendPort = backendPort;
+    }
+
+    /**
+     * Parses a listener list like "8126:teama.:10,8127:teamb.:60@graphite2:2003",
+     * UDP port, name prefix (may be empty), flush interval in seconds, and
+     * optionally a Graphite host and port.
+     */
+    public static List<Pipeline> parse(String listenerList, String defaultHost, int defaultPort) throws NumberFormatException {
+        List<Pipeline> result = new ArrayList<Pipeline>();
+        if (listenerList == null) {
+            return result;
+        }
+        for (String entry : listenerList.split(",")) {
+            entry = entry.trim();
+            if (entry.length() == 0) {
+                continue;
+            }
+            String host = defaultHost;
+            int backendPort = defaultPort;
+            int at = entry.indexOf('@');
+            if (at >= 0) {
+                String target = entry.substring(at + 1);
+                entry = entry.substring(0, at);
+                int colon = target.lastIndexOf(':');
+                if (colon <= 0) {
+                    throw new NumberFormatException("Missing Graphite port on " + target);
+                }
+                host = target.substring(0, colon);
+                backendPort = Integer.parseInt(target.substring(colon + 1));
+            }
+            String[] f = entry.split(":", -1);
+            if (f.length != 3) {
+                throw new NumberFormatException("Expected port:prefix:seconds on " + entry);
+            }
+            int seconds = Integer.parseInt(f[2].trim());
+            if (seconds <= 0) {
+                throw new NumberFormatException("Interval must be positive on " + entry);
+            }
+            result.add(new Pipeline(Integer.parseInt(f[0].trim()), f[1].trim(), seconds * 1000L, host, backendPort));
+        }
+        return result;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public String getPrefix() {
+        return prefix;
+    }
+
+    public long getDelay() {
+        return delay;
+    }
+
+    public GraphiteBackend getBackend() {
+        return backend;
+    }
+
+    /**
+     * Buckets and backend configured like the main ones, and the first flush
+     * scheduled.
+     */
+    void init(Jstatsd jstatsd) {
+        this.jstatsd = jstatsd;
+        gaugeValues.setLimits(jstatsd.gaugeIdleIntervals, jstatsd.maxRetainedGauges);
+        for (int i = 0; i < bucket.length; i++) {
+            bucket[i] = jstatsd.newBucket(null);
+        }
+        backend = new GraphiteBackend(host, backendPort);
+        backend.setTagsAsPath(jstatsd.tagsAsPath);
+        backend.setFlushShards(jstatsd.flushShards);
+        backend.setTimings(timings);
+        backend.init();
+        scheduler = new Timer("Flush scheduler " + port + ".");
+        scheduler.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                long start = System.nanoTime();
+                synchronized (flushLock) {
+                    timings.add(FlushTimings.Phase.swap, System.nanoTime() - start);
+                    if (!shuttingDown) {
+                        swapAndFlush();
+                    }
+                }
+            }
+        }, delay, delay);
+    }
+
+    Bucket getCurrentBucket() {
+        synchronized (bucketLock) {
+            return bucket[currentBucket];
+        }
+    }
+
+    public void add(String key, long value, String type, boolean delta) {
+        Bucket bucketToUse = getCurrentBucket();
+        if (delta) {
+            bucketToUse.addGaugeDelta(prefix + key, value);
+        } else {
+            bucketToUse.add(prefix + key, value, type);
+        }
+        if (bucketToUse.isOverHighWater()) {
+            compactSoon(bucketToUse);
+        }
+    }
+
+    void compactSoon(final Bucket b) {
+        if (!compactPending.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            scheduler.schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    synchronized (flushLock) {
+                        compactPending.set(false);
+                        jstatsd.compact(b, "port " + port + " bucket");
+                    }
+                }
+            }, 0);
+        } catch (IllegalStateException ex) {
+            // Shutting down
+        }
+    }
+
+    void swapAndFlush() {
+        long startNanos = System.nanoTime();
+        int oldBucket = currentBucket;
+        synchronized (bucketLock) {
+            long now = System.currentTimeMillis();
+            bucket[(currentBucket + 1) % 2].setFlushTime(now);
+            bucket[currentBucket].setFlushEnd(now);
+            currentBucket = (currentBucket + 1) % 2;
+        }
+        timings.add(FlushTimings.Phase.swap, System.nanoTime() - startNanos);
+        Bucket toFlush = bucket[oldBucket];
+        if (jstatsd.deleteGauges) {
+            gaugeValues.clear();
+        }
+        toFlush.resolveGauges(gaugeValues);
+        // Own metrics go under the prefix too, apart from the main port's
+        Bucket internal = new Bucket();
+        toFlush.getAdmission().report(internal);
+        gaugeValues.report(internal);
+        if (toFlush.getPacked() != null) {
+            toFlush.getPacked().report(internal);
+        }
+        timings.report(internal);
+        backend.getStats().report(internal);
+        toFlush.merge(internal, prefix);
+        lastFlushKeys = toFlush.getKeyCount();
+        lastFlushResult = jstatsd.flush(backend, toFlush, false, timings);
+        timings.add(FlushTimings.Phase.total, System.nanoTime() - startNanos);
+        Logger.getLogger(Jstatsd.class.getName()).log(Level.INFO, "Port {0} flushed {1} keys: {2}", new Object[]{"" + port, lastFlushKeys, timings.finish()});
+    }
+
+    /**
+     * Stops the scheduler and flushes what's left. Listeners must be closed.
+     */
+    void shutDown() {
+        synchronized (flushLock) {
+            shuttingDown = true;
+        }
+        scheduler.cancel();
+        synchronized (flushLock) {
+            swapAndFlush();
+        }
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.ideeli.utils.jstatsd;
+
+import com.ideeli.utils.jstatsd.backends.Backend;
+import com.ideeli.utils.jstatsd.backends.BackendCalls;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Holds proxied lines for a short window and sends them on a single write,
+ * keeping one line per path and timestamp: the last one received. Agents
+ * resending the same datapoint then cost carbon one update, not one per copy.
+ *
+ * Lines that aren't "path value timestamp" are sent as they came. Lines keep
+ * the order in which their path and timestamp were first seen.
+ *
+ * @author marc
+ */
+public class ProxyCoalescer {
+
+    final Backend backend;
+    final long windowMillis;
+    // Sent before the window ends past this
+    final int maxLines;
+    LinkedHashMap<String, String> pending = new LinkedHashMap<String, String>();
+    StringBuilder unkeyed = new StringBuilder();
+    int unkeyedLines = 0;
+    // Keeps batches in order, without holding up add() while writing
+    final Object sendLock = new Object();
+    Future<Void> lastSend;
+    final Timer timer = new Timer("Proxy coalescer.", true);
+    final AtomicLong received = new AtomicLong();
+    final AtomicLong sent = new AtomicLong();
+    final AtomicLong replaced = new AtomicLong();
+
+    public ProxyCoalescer(Backend backend, long windowMillis, int maxLines) {
+        if (windowMillis <= 0 || maxLines <= 0) {
+            throw new IllegalArgumentException();
+        }
+        this.backend = backend;
+        this.windowMillis = windowMillis;
+        this.maxLines = maxLines;
+    }
+
+    public void start() {
+        timer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                flush();
+            }
+        }, windowMillis, windowMillis);
+    }
+
+    /**
+     * Buffers one or more newline separated lines.
+     */
+    public void add(String data) {
+        boolean full;
+        synchronized (this) {
+            int start = 0;
+            while (start < data.length()) {
+                int end = data.indexOf('\n', start);
+                if (end < 0) {
+                    end = data.length();
+                }
+                String line = data.substring(start, end).trim();
+                start = end + 1;
+                if (line.length() == 0) {
+                    continue;
+                }
+                received.incrementAndGet();
+                int first = line.indexOf(' ');
+                int last = line.lastIndexOf(' ');
+                if (first <= 0 || last <= first) {
+                    unkeyed.append(line).append('\n');
+                    unkeyedLines++;
+                    continue;
+                }
+                if (pending.put(line.substring(0, first) + line.substring(last), line) != null) {
+                    replaced.incrementAndGet();
+                }
+            }
+            full = pending.size() + unkeyedLines >= maxLines;
+        }
+        if (full) {
+            flush();
+        }
+    }
+
+    /**
+     * Sends what's buffered.
+     */
+    public void flush() {
+        synchronized (sendLock) {
+            StringBuilder batch;
+            int lines;
+            synchronized (this) {
+                lines = pending.size() + unkeyedLines;
+                if (lines == 0) {
+                    return;
+                }
+                batch = new StringBuilder(pending.size() * 64 + unkeyed.length());
+                for (Map.Entry<String, String> e : pending.entrySet()) {
+                    batch.append(e.getValue()).append('\n');
+                }
+                batch.append(unkeyed);
+                pending = new LinkedHashMap<String, String>();
+                unkeyed = new StringBuilder();
+                unkeyedLines = 0;
+            }
+            sent.addAndGet(lines);
+            // Queued in order, a failed send leaves the lines on stdout
+            lastSend = backend.send(batch);
+        }
+    }
+
+    /**
+     * Stops the window and sends what's left. Proxy listeners must be closed.
+     */
+    public void stop() {
+        timer.cancel();
+        flush();
+        Future<Void> last;
+        synchronized (sendLock) {
+            last = lastSend;
+        }
+        if (last == null) {
+            return;
+        }
+        try {
+            // Batches go out in order, so all of them
+            BackendCalls.await(last);
+        } catch (IOException ex) {
+            // Already on stdout
+        }
+    }
+
+    public long getWindowMillis() {
+        return windowMillis;
+    }
+
+    /**
+     * Lines received.
+     */
+    public long getReceived() {
+        return received.get();
+    }
+
+    /**
+     * Lines sent.
+     */
+    public long getSent() {
+        return sent.get();
+    }
+
+    /**
+     * Lines dropped for a later one with the same path and timestamp.
+     */
+    public long getReplaced() {
+        return replaced.get();
+    }
+}
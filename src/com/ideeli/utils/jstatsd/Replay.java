@@ -0,0 +1,211 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.ideeli.utils.jstatsd;
+
+import com.ideeli.utils.jstatsd.backends.GraphiteBackend;
+import com.ideeli.utils.jstatsd.networking.PacketCapture;
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Feeds a capture from {@link PacketCapture} back, to measure ingest on real
+ * traffic.
+ *
+ * In process, datagrams go straight to a Jstatsd configured as usual (system
+ * properties and config file) but without listeners, and intervals are cut on
+ * the capture's clock. Flushes are written nowhere, only checksummed, so two
+ * builds can be compared on the same capture: unless timers are sampled
+ * (TimerReservoir, HighWaterMB) the checksums must match.
+ *
+ * With a host:port datagrams are sent over UDP instead, the output has to be
+ * checked on the receiving side.
+ *
+ * @author marc
+ */
+public class Replay {
+
+    final PacketCapture.Reader capture;
+    // Capture seconds per replay second, 0 for as fast as possible
+    final double speed;
+    long firstMicros = -1;
+    long startNanos;
+    long datagrams = 0;
+    long lines = 0;
+    long bytes = 0;
+    long ingestNanos = 0;
+
+    public Replay(PacketCapture.Reader capture, double speed) {
+        this.capture = capture;
+        this.speed = speed;
+    }
+
+    /**
+     * Waits until the current datagram is due.
+     */
+    void pace() throws InterruptedException {
+        long micros = capture.getMicros();
+        if (firstMicros < 0 || micros < firstMicros) {
+            // Start, or an earlier session appended after a later one
+            firstMicros = micros;
+            startNanos = System.nanoTime();
+        }
+        if (speed <= 0) {
+            return;
+        }
+        long due = startNanos + (long) ((micros - firstMicros) * 1000 / speed);
+        long wait = due - System.nanoTime();
+        if (wait > 0) {
+            Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+        }
+    }
+
+    /**
+     * @return combined checksum of every flush.
+     */
+    long inProcess(Jstatsd jstatsd) throws IOException, InterruptedException {
+        GraphiteBackend text = new GraphiteBackend("localhost", 0);
+        text.setTagsAsPath(jstatsd.tagsAsPath);
+        Bucket bucket = jstatsd.getCurrentBucket();
+        CRC32 total = new CRC32();
+        long nextFlush = -1;
+        int flushes = 0;
+        while (capture.next()) {
+            pace();
+            long now = capture.getMicros() / 1000;
+            if (nextFlush < 0) {
+                bucket.setFlushTime(now);
+                nextFlush = now + jstatsd.delay;
+            }
+            while (now >= nextFlush) {
+                if (bucket.getKeyCount() == 0) {
+                    // Idle, or a gap between sessions
+                    nextFlush += (now - nextFlush) / jstatsd.delay * jstatsd.delay;
+                    bucket.setFlushTime(nextFlush);
+                    nextFlush += jstatsd.delay;
+                    continue;
+                }
+                jstatsd.retainGauges(bucket);
+                flush(text, bucket, nextFlush, ++flushes, total);
+                nextFlush += jstatsd.delay;
+            }
+            long start = System.nanoTime();
+            String data = new String(capture.getData(), "UTF-8");
+            for (String line : data.split("\r?\n")) {
+                if (line.length() > 0) {
+                    jstatsd.consumeUDP(jstatsd.UDPPort, line);
+                    lines++;
+                }
+            }
+            ingestNanos += System.nanoTime() - start;
+            datagrams++;
+            bytes += capture.getData().length;
+        }
+        if (nextFlush >= 0 && bucket.getKeyCount() > 0) {
+            jstatsd.retainGauges(bucket);
+            flush(text, bucket, nextFlush, ++flushes, total);
+        }
+        return total.getValue();
+    }
+
+    void flush(GraphiteBackend text, Bucket bucket, long timestamp, int n, CRC32 total) throws IOException {
+        int keys = bucket.getKeyCount();
+        CheckedOutputStream out = new CheckedOutputStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        }, new CRC32());
+        text.flush(out, bucket, timestamp);
+        long crc = out.getChecksum().getValue();
+        for (int i = 0; i < 4; i++) {
+            total.update((int) (crc >>> (i * 8)));
+        }
+        System.out.println("flush " + n + " at " + timestamp + ": " + keys + " keys, crc32 " + Long.toHexString(crc));
+    }
+
+    void overUdp(String host, int port) throws IOException, InterruptedException {
+        DatagramSocket socket = new DatagramSocket();
+        InetSocketAddress target = new InetSocketAddress(host, port);
+        try {
+            while (capture.next()) {
+                pace();
+                long start = System.nanoTime();
+                byte[] data = capture.getData();
+                socket.send(new DatagramPacket(data, data.length, target));
+                ingestNanos += System.nanoTime() - start;
+                datagrams++;
+                bytes += data.length;
+            }
+        } finally {
+            socket.close();
+        }
+    }
+
+    void report(String what) {
+        double secs = Math.max(1, ingestNanos) / 1e9;
+        double elapsed = Math.max(1, System.nanoTime() - startNanos) / 1e9;
+        System.out.println(what + " " + datagrams + " datagrams, " + (lines > 0 ? lines + " lines, " : "") + bytes + " bytes in " + String.format("%.3f", secs) + " s ("
+                + Math.round(datagrams / secs) + " datagrams/s" + (lines > 0 ? ", " + Math.round(lines / secs) + " lines/s" : "") + "), "
+                + String.format("%.3f", elapsed) + " s elapsed");
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 1 || args.length > 3) {
+            System.err.println("Usage: Replay <capture file> [max|original|<speed factor>] [host:port]");
+            System.err.println("Without host:port the capture is fed to an in process jstatsd and its flushes checksummed.");
+            System.exit(1);
+        }
+        double speed = 0;
+        if (args.length > 1 && !args[1].equals("max")) {
+            try {
+                speed = args[1].equals("original") ? 1 : Double.parseDouble(args[1]);
+            } catch (NumberFormatException ex) {
+                speed = -1;
+            }
+            if (speed <= 0) {
+                System.err.println("Invalid speed: " + args[1]);
+                System.exit(1);
+            }
+        }
+        PacketCapture.Reader reader = new PacketCapture.Reader(new BufferedInputStream(new FileInputStream(args[0]), 65536));
+        Replay replay = new Replay(reader, speed);
+        try {
+            if (args.length > 2) {
+                int colon = args[2].lastIndexOf(':');
+                if (colon <= 0) {
+                    System.err.println("Invalid target: " + args[2]);
+                    System.exit(1);
+                }
+                replay.overUdp(args[2].substring(0, colon), Integer.parseInt(args[2].substring(colon + 1)));
+                replay.report("Sent");
+            } else {
+                Jstatsd jstatsd = new Jstatsd();
+                jstatsd.validateAndLoadProperties();
+                // Neither restored nor consumed, it belongs to the daemon
+                jstatsd.snapshotFile = null;
+                jstatsd.initBuckets();
+                // Never scheduled, but its thread would keep us running
+                jstatsd.scheduler.cancel();
+                // Every key is aggregated here
+                jstatsd.cluster = null;
+                long crc = replay.inProcess(jstatsd);
+                replay.report("Ingested");
+                System.out.println("Output crc32 " + Long.toHexString(crc));
+            }
+        } finally {
+            reader.close();
+        }
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.ideeli.utils.jstatsd;
+
+import java.util.Arrays;
+
+/**
+ * Timer samples of a key, with bounded memory: count, sum, sum of squares,
+ * min and max are exact, and percentiles come from a uniform sample of a
+ * fixed number of values (Vitter's algorithm R).
+ *
+ * While fewer samples than the capacity arrive the sample holds all of them,
+ * so results are the same as keeping the whole list.
+ *
+ * Not thread safe, callers synchronize on it.
+ *
+ * @author marc
+ */
+public class Reservoir {
+
+    long[] samples;
+    int size = 0;
+    long count = 0;
+    long sum = 0;
+    double sumSquares = 0;
+    long min = Long.MAX_VALUE;
+    long max = Long.MIN_VALUE;
+    long seed;
+
+    public Reservoir(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException();
+        }
+        samples = new long[capacity];
+        seed = System.nanoTime() ^ System.identityHashCode(this);
+        if (seed == 0) {
+            seed = 1;
+        }
+    }
+
+    /**
+     * Rebuilds a reservoir from what {@link BucketCodec} sends of it.
+     *
+     * @param samples the kept samples, any order.
+     */
+    static Reservoir of(long count, long sum, double sumSquares, long min, long max, long[] samples) {
+        Reservoir res = new Reservoir(Math.max(samples.length, 1));
+        System.arraycopy(samples, 0, res.samples, 0, samples.length);
+        res.size = samples.length;
+        res.count = count;
+        res.sum = sum;
+        res.sumSquares = sumSquares;
+        res.min = min;
+        res.max = max;
+        return res;
+    }
+
+    /**
+     * xorshift, good enough to pick samples and cheaper than a shared Random.
+     */
+    long next() {
+        seed ^= seed << 13;
+        seed ^= seed >>> 7;
+        seed ^= seed << 17;
+        return seed >>> 1;
+    }
+
+    public void add(long value) {
+        count++;
+        sum += value;
+        sumSquares += (double) value * value;
+        if (value < min) {
+            min = value;
+        }
+        if (value > max) {
+            max = value;
+        }
+        if (size < samples.length) {
+            samples[size++] = value;
+        } else {
+            long j = next() % count;
+            if (j < samples.length) {
+                samples[(int) j] = value;
+            }
+        }
+    }
+
+    /**
+     * Adds the samples seen by another reservoir, keeping the sample uniform
+     * over both: how many values come from each side is drawn as if sampling
+     * the union without replacement, then that many are picked at random from
+     * each.
+     */
+    public void merge(Reservoir other) {
+        if (other.count == 0) {
+            return;
+        }
+        if (count + other.count <= samples.length) {
+            // Both still hold every sample
+            System.arraycopy(other.samples, 0, samples, size, other.size);
+            size += other.size;
+        } else {
+            int k = Math.min(samples.length, size + other.size);
+            long mineLeft = count;
+            long otherLeft = other.count;
+            int fromMine = 0;
+            for (int i = 0; i < k; i++) {
+                if (next() % (mineLeft + otherLeft) < mineLeft) {
+                    fromMine++;
+                    mineLeft--;
+                } else {
+                    otherLeft--;
+                }
+            }
+            fromMine = Math.max(k - other.size, Math.min(fromMine, size));
+            long[] kept = new long[samples.length];
+            pick(samples, size, fromMine, kept, 0);
+            pick(other.samples, other.size, k - fromMine, kept, fromMine);
+            samples = kept;
+            size = k;
+        }
+        count += other.count;
+        sum += other.sum;
+        sumSquares += other.sumSquares;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+    }
+
+    /**
+     * Copies n values picked at random out of the first size of from.
+     */
+    private void pick(long[] from, int size, int n, long[] to, int at) {
+        long[] pool = Arrays.copyOf(from, size);
+        for (int i = 0; i < n; i++) {
+            int j = i + (int) (next() % (size - i));
+            long tmp = pool[i];
+            pool[i] = pool[j];
+            pool[j] = tmp;
+            to[at + i] = pool[i];
+        }
+    }
+
+    /**
+     * Sorted copy of the kept samples.
+     */
+    public long[] sorted() {
+        long[] copy = Arrays.copyOf(samples, size);
+        Arrays.sort(copy);
+        return copy;
+    }
+
+    public int getCapacity() {
+        return samples.length;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getSum() {
+        return sum;
+    }
+
+    public double getSumSquares() {
+        return sumSquares;
+    }
+
+    public long getMin() {
+        return min;
+    }
+
+    public long getMax() {
+        return max;
+    }
+}
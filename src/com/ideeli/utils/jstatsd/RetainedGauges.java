@@ -0,0 +1,131 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.ideeli.utils.jstatsd;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Last value of every gauge, sent again on the intervals it isn't updated
+ * and what relative updates apply to.
+ *
+ * A gauge not updated for maxIdle intervals is forgotten, and no more than
+ * maxKeys are kept: a new gauge past that is sent on its own interval only,
+ * and counted as dropped.
+ *
+ * Updated from the flush thread only.
+ *
+ * @author marc
+ */
+public class RetainedGauges {
+
+    static class Entry {
+
+        long value;
+        // Intervals since it was last updated
+        int idle;
+
+        Entry(long value) {
+            this.value = value;
+        }
+    }
+    final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+    int maxIdle = 0;
+    int maxKeys = Integer.MAX_VALUE;
+    final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * @param maxIdle intervals a gauge is kept without updates, 0 for ever.
+     * @param maxKeys gauges kept.
+     */
+    public void setLimits(int maxIdle, int maxKeys) {
+        this.maxIdle = maxIdle;
+        this.maxKeys = maxKeys;
+    }
+
+    /**
+     * @return the last value, or null if not kept.
+     */
+    public Long get(String name) {
+        Entry e = entries.get(name);
+        return e == null ? null : e.value;
+    }
+
+    /**
+     * Records an updated gauge.
+     */
+    public void put(String name, long value) {
+        Entry e = entries.get(name);
+        if (e != null) {
+            e.value = value;
+            e.idle = 0;
+        } else if (entries.size() < maxKeys) {
+            entries.put(name, new Entry(value));
+        } else {
+            dropped.incrementAndGet();
+        }
+    }
+
+    /**
+     * Ages the gauges not in updated, forgetting the ones idle for too long.
+     *
+     * @return the rest, to be sent again.
+     */
+    public Map<String, Long> idle(Set<String> updated) {
+        Map<String, Long> idle = new HashMap<String, Long>();
+        for (Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<String, Entry> e = it.next();
+            if (updated.contains(e.getKey())) {
+                continue;
+            }
+            if (maxIdle > 0 && ++e.getValue().idle > maxIdle) {
+                it.remove();
+            } else {
+                idle.put(e.getKey(), e.getValue().value);
+            }
+        }
+        return idle;
+    }
+
+    /**
+     * Names kept, removing from it forgets the gauge.
+     */
+    public Set<String> names() {
+        return entries.keySet();
+    }
+
+    /**
+     * Copy of the last values, for snapshots.
+     */
+    public Map<String, Long> values() {
+        Map<String, Long> values = new HashMap<String, Long>();
+        for (Map.Entry<String, Entry> e : entries.entrySet()) {
+            values.put(e.getKey(), e.getValue().value);
+        }
+        return values;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public void clear() {
+        entries.clear();
+    }
+
+    /**
+     * Adds the gauges not kept since the last report to the bucket.
+     */
+    public void report(Bucket bucket) {
+        long n = dropped.getAndSet(0);
+        if (n > 0) {
+            bucket.addInternal(KeyAdmission.DROPPED_PREFIX + "retained_gauges", n, Bucket.Type.c);
+        }
+    }
+}
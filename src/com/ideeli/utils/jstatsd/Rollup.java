@@ -0,0 +1,153 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.ideeli.utils.jstatsd;
+
+import com.ideeli.utils.jstatsd.backends.Backend;
+import com.ideeli.utils.jstatsd.backends.GraphiteBackend;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A coarser flush interval fed from the main one, so a single process can feed
+ * several retention tiers parsing each sample once.
+ *
+ * Samples are never ingested again: every flushed bucket is merged into the
+ * finest rollups, and each rollup is merged into the next coarser one it
+ * divides when it flushes. Names get the rollup prefix only when flushed.
+ *
+ * @author marc
+ */
+public class Rollup {
+
+    final int interval;
+    final String prefix;
+    // Own backend, null to use the main one
+    final Backend backend;
+    // Base flushes per rollup flush
+    int every;
+    int ticks = 0;
+    // Finer rollup feeding this one, null if fed by the base interval
+    Rollup source;
+    Bucket bucket = new Bucket();
+
+    public Rollup(int interval, String prefix, Backend backend) {
+        if (interval <= 0) {
+            throw new IllegalArgumentException();
+        }
+        this.interval = interval;
+        this.prefix = prefix;
+        this.backend = backend;
+    }
+
+    /**
+     * Parses a rollup list like "60:rollup.1m.,300:rollup.5m.@graphite2:2003",
+     * interval in seconds, prefix, and optionally a Graphite host and port.
+     *
+     * @param base main flush interval, in seconds. Every rollup must be a
+     * multiple of it.
+     * @return the rollups, finest first, with their sources set.
+     */
+    public static List<Rollup> parse(String rollupList, int base) throws NumberFormatException {
+        List<Rollup> result = new ArrayList<Rollup>();
+        if (rollupList == null) {
+            return result;
+        }
+        for (String entry : rollupList.split(",")) {
+            entry = entry.trim();
+            if (entry.length() == 0) {
+                continue;
+            }
+            int colon = entry.indexOf(':');
+            if (colon <= 0) {
+                throw new NumberFormatException("Missing interval on " + entry);
+            }
+            int interval = Integer.parseInt(entry.substring(0, colon).trim());
+            if (interval <= base || interval % base != 0) {
+                throw new NumberFormatException("Interval must be a multiple of FlushInterval on " + entry);
+            }
+            String prefix = entry.substring(colon + 1).trim();
+            Backend backend = null;
+            int at = prefix.indexOf('@');
+            if (at >= 0) {
+                String target = prefix.substring(at + 1);
+                prefix = prefix.substring(0, at);
+                int port = target.lastIndexOf(':');
+                if (port <= 0) {
+                    throw new NumberFormatException("Missing port on " + entry);
+                }
+                backend = new GraphiteBackend(target.substring(0, port), Integer.parseInt(target.substring(port + 1)));
+            }
+            Rollup r = new Rollup(interval, prefix, backend);
+            r.every = interval / base;
+            result.add(r);
+        }
+        Collections.sort(result, new Comparator<Rollup>() {
+            @Override
+            public int compare(Rollup a, Rollup b) {
+                return a.interval - b.interval;
+            }
+        });
+        for (int i = 0; i < result.size(); i++) {
+            Rollup r = result.get(i);
+            for (int j = i - 1; j >= 0; j--) {
+                Rollup finer = result.get(j);
+                if (finer.interval < r.interval && r.interval % finer.interval == 0) {
+                    r.source = finer;
+                    break;
+                }
+            }
+        }
+        return result;
+    }
+
+    public int getInterval() {
+        return interval;
+    }
+
+    public String getPrefix() {
+        return prefix;
+    }
+
+    public Backend getBackend() {
+        return backend;
+    }
+
+    public Rollup getSource() {
+        return source;
+    }
+
+    public Bucket getBucket() {
+        return bucket;
+    }
+
+    /**
+     * Called once per base flush.
+     *
+     * @return true if this rollup is due.
+     */
+    public boolean tick() {
+        if (++ticks < every) {
+            return false;
+        }
+        ticks = 0;
+        return true;
+    }
+
+    /**
+     * Hands over what was accumulated, with prefixed names, and starts again.
+     */
+    public Bucket drain(long currentFlush) {
+        Bucket out = new Bucket();
+        out.setReservoirSize(bucket.getReservoirSize());
+        out.merge(bucket, prefix);
+        out.setFlushTime(bucket.getLastFlush());
+        out.setFlushEnd(currentFlush);
+        bucket.cleanup();
+        bucket.setFlushTime(currentFlush);
+        return out;
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.ideeli.utils.jstatsd;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * State saved on shutdown and restored on startup, so a restart doesn't lose
+ * the bucket being filled nor the gauges.
+ *
+ * <pre>
+ * MAGIC(8) counters(4) gauges(4) timers(4) pending_length(4) pending gauges_length(4) gauges
+ * </pre>
+ *
+ * counters/gauges/timers are the key counts of the last interval, used to size
+ * the buckets. pending is whatever could not be flushed, and gauges the last
+ * value of every gauge, both BucketCodec frames of the same stream.
+ *
+ * The file is written and read through a memory mapping.
+ *
+ * @author marc
+ */
+public class Snapshot {
+
+    static final byte[] MAGIC = {'J', 'S', 'T', 'S', 'N', 'A', 'P', '1'};
+    int counters;
+    int gauges;
+    int timers;
+    MappedByteBuffer map;
+    int pendingOffset;
+    int pendingLength;
+    int gaugesOffset;
+    int gaugesLength;
+
+    public int getCounters() {
+        return counters;
+    }
+
+    public int getGauges() {
+        return gauges;
+    }
+
+    public int getTimers() {
+        return timers;
+    }
+
+    /**
+     * Writes a snapshot to file. A temporary file is renamed over it once
+     * complete, so a crash while writing leaves the previous one.
+     */
+    public static void write(String file, int counters, int gauges, int timers, Bucket pending, Map<String, Long> gaugeValues) throws IOException {
+        BucketCodec codec = new BucketCodec();
+        long now = System.currentTimeMillis();
+        byte[] pendingFrame = codec.encode(pending != null ? pending : new Bucket(), now);
+        Bucket lastGauges = new Bucket();
+        for (Map.Entry<String, Long> e : gaugeValues.entrySet()) {
+            lastGauges.addInternal(e.getKey(), e.getValue(), Bucket.Type.g);
+        }
+        byte[] gaugesFrame = codec.encode(lastGauges, now);
+
+        File target = new File(file);
+        File tmp = new File(file + ".tmp");
+        RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+        try {
+            int size = MAGIC.length + 4 * 5 + pendingFrame.length + gaugesFrame.length;
+            raf.setLength(size);
+            MappedByteBuffer out = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            out.put(MAGIC);
+            out.putInt(counters);
+            out.putInt(gauges);
+            out.putInt(timers);
+            out.putInt(pendingFrame.length);
+            out.put(pendingFrame);
+            out.putInt(gaugesFrame.length);
+            out.put(gaugesFrame);
+            out.force();
+        } finally {
+            raf.close();
+        }
+        if (!tmp.renameTo(target)) {
+            target.delete();
+            if (!tmp.renameTo(target)) {
+                throw new IOException("Can't rename " + tmp + " to " + target);
+            }
+        }
+    }
+
+    /**
+     * Maps a snapshot file.
+     *
+     * @return the snapshot, or null if there's none.
+     */
+    public static Snapshot read(String file) throws IOException {
+        File source = new File(file);
+        if (!source.exists()) {
+            return null;
+        }
+        Snapshot snapshot = new Snapshot();
+        RandomAccessFile raf = new RandomAccessFile(source, "r");
+        try {
+            // The mapping stays valid once the file is closed
+            snapshot.map = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        } finally {
+            raf.close();
+        }
+        MappedByteBuffer in = snapshot.map;
+        byte[] magic = new byte[MAGIC.length];
+        if (in.remaining() < MAGIC.length + 4 * 5) {
+            throw new IOException("Truncated snapshot " + file);
+        }
+        in.get(magic);
+        if (!Arrays.equals(magic, MAGIC)) {
+            throw new IOException("Not a snapshot " + file);
+        }
+        snapshot.counters = in.getInt();
+        snapshot.gauges = in.getInt();
+        snapshot.timers = in.getInt();
+        snapshot.pendingLength = in.getInt();
+        snapshot.pendingOffset = in.position();
+        if (snapshot.pendingLength < 0 || snapshot.pendingLength > in.remaining() - 4) {
+            throw new IOException("Truncated snapshot " + file);
+        }
+        in.position(snapshot.pendingOffset + snapshot.pendingLength);
+        snapshot.gaugesLength = in.getInt();
+        snapshot.gaugesOffset = in.position();
+        if (snapshot.gaugesLength < 0 || snapshot.gaugesLength > in.remaining()) {
+            throw new IOException("Truncated snapshot " + file);
+        }
+        return snapshot;
+    }
+
+    /**
+     * Merges the pending samples into target, and the last gauge values into
+     * gaugeValues, so they are sent again until updated.
+     */
+    public void restore(Bucket target, RetainedGauges gaugeValues) throws IOException {
+        BucketCodec codec = new BucketCodec();
+        codec.decode(slice(pendingOffset, pendingLength), target);
+        Bucket lastGauges = new Bucket();
+        codec.decode(slice(gaugesOffset, gaugesLength), lastGauges);
+        for (Map.Entry<String, Bucket.Gauge> e : lastGauges.getGaugeHashes().entrySet()) {
+            gaugeValues.put(e.getKey(), e.getValue().get());
+        }
+    }
+
+    private ByteBuffer slice(int offset, int length) {
+        ByteBuffer buffer = map.duplicate();
+        buffer.position(offset);
+        buffer.limit(offset + length);
+        return buffer.slice();
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.ideeli.utils.jstatsd;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Interns DogStatsD tagged names ("name" plus "env:prod,region:eu") into a
+ * single canonical bucket key in Graphite 1.1 form, "name;env=prod;region=eu",
+ * tags sorted by name. Tags without a value get "true".
+ *
+ * The key is built once per distinct (name, tags) pair and the same instance
+ * is handed back afterwards, so a known pair costs two lookups and no
+ * allocation, and every sample of it aggregates on the same key.
+ *
+ * @author marc
+ */
+public class Tags {
+
+    // Interned pairs are dropped past this, so tag churn can't grow it forever
+    static final int MAX_INTERNED = 1 << 18;
+    // Tag sets kept per name, past this the name's keys are built every time
+    static final int MAX_PER_NAME = 1 << 12;
+    final ConcurrentHashMap<String, ConcurrentHashMap<String, String>> keys = new ConcurrentHashMap<String, ConcurrentHashMap<String, String>>();
+    final AtomicInteger interned = new AtomicInteger();
+
+    /**
+     * @param tags raw tags, as sent after "|#", or null.
+     * @return the bucket key.
+     */
+    public String key(String name, String tags) {
+        if (tags == null || tags.length() == 0) {
+            return name;
+        }
+        ConcurrentHashMap<String, String> byTags = keys.get(name);
+        if (byTags == null) {
+            byTags = new ConcurrentHashMap<String, String>(4);
+            ConcurrentHashMap<String, String> old = keys.putIfAbsent(name, byTags);
+            if (old != null) {
+                byTags = old;
+            }
+        }
+        String key = byTags.get(tags);
+        if (key != null) {
+            return key;
+        }
+        key = name + canonical(tags);
+        if (byTags.size() >= MAX_PER_NAME) {
+            // A tag with a value per sample, not worth keeping
+            return key;
+        }
+        if (interned.incrementAndGet() > MAX_INTERNED) {
+            keys.clear();
+            interned.set(0);
+            return key;
+        }
+        String old = byTags.putIfAbsent(tags, key);
+        if (old != null) {
+            interned.decrementAndGet();
+            return old;
+        }
+        return key;
+    }
+
+    /**
+     * ";a=1;b=2" for "b:2,a:1".
+     */
+    static String canonical(String tags) {
+        String[] list = tags.split(",");
+        for (int i = 0; i < list.length; i++) {
+            String tag = list[i].trim();
+            int colon = tag.indexOf(':');
+            String name = colon < 0 ? tag : tag.substring(0, colon);
+            String value = colon < 0 ? "true" : tag.substring(colon + 1);
+            list[i] = clean(name) + "=" + clean(value);
+        }
+        Arrays.sort(list);
+        StringBuilder sb = new StringBuilder();
+        String last = null;
+        for (String tag : list) {
+            if (tag.charAt(0) == '=' || tag.equals(last)) {
+                continue;
+            }
+            sb.append(';').append(tag);
+            last = tag;
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Characters Graphite doesn't take on tags.
+     */
+    static String clean(String s) {
+        StringBuilder sb = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            sb.append(c == ';' || c == '=' || c == '!' || c == '^' || c == '~' || Character.isWhitespace(c) ? '_' : c);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Splits a bucket key in its plain name and its ";tag=value" suffix (empty
+     * if untagged).
+     */
+    public static String[] split(String key) {
+        int tags = key.indexOf(';');
+        if (tags < 0) {
+            return new String[]{key, ""};
+        }
+        return new String[]{key.substring(0, tags), key.substring(tags)};
+    }
+
+    /**
+     * ".env_prod.region_eu" for ";env=prod;region=eu".
+     */
+    public static String asPath(String suffix) {
+        StringBuilder sb = new StringBuilder(suffix.length());
+        for (int i = 0; i < suffix.length(); i++) {
+            char c = suffix.charAt(i);
+            sb.append(c == ';' ? '.' : (c == '=' || c == '.' ? '_' : c));
+        }
+        return sb.toString();
+    }
+}
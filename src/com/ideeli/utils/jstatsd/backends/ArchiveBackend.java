@@ -0,0 +1,140 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.ideeli.utils.jstatsd.backends;
+
+import com.ideeli.utils.jstatsd.Bucket;
+import com.ideeli.utils.jstatsd.BucketCodec;
+import com.ideeli.utils.jstatsd.Jstatsd;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Appends every flushed bucket to a file, as length prefixed BucketCodec
+ * frames (same framing as the relay link), then hands it to the wrapped
+ * backend.
+ *
+ * Each run starts a new codec stream, so the file can be appended to across
+ * restarts. Run this class with the file as argument to dump it as Graphite
+ * plaintext.
+ *
+ * @author marc
+ */
+public class ArchiveBackend implements Backend {
+
+    final Backend backend;
+    final String file;
+    DataOutputStream out;
+    BucketCodec codec;
+
+    public ArchiveBackend(Backend backend, String file) {
+        this.backend = backend;
+        this.file = file;
+    }
+
+    @Override
+    public void init() {
+        backend.init();
+    }
+
+    @Override
+    public TcpConfigData getConfig() {
+        return backend.getConfig();
+    }
+
+    public Backend getBackend() {
+        return backend;
+    }
+
+    synchronized void archive(Bucket bucket) {
+        try {
+            if (out == null) {
+                out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true), 65536));
+                codec = new BucketCodec();
+            }
+            byte[] frame = codec.encode(bucket, bucket.getFlushEnd());
+            out.writeInt(frame.length);
+            out.write(frame);
+            out.flush();
+        } catch (IOException ex) {
+            Logger.getLogger(Jstatsd.class.getName()).log(Level.SEVERE, "Can't archive to " + file, ex);
+            // Start a fresh stream next time, the last frame may be incomplete
+            try {
+                if (out != null) {
+                    out.close();
+                }
+            } catch (IOException ex1) {
+            }
+            out = null;
+        }
+    }
+
+    /**
+     * Archived on the caller's thread, before handing the bucket over.
+     */
+    @Override
+    public Future<Void> flush(Bucket bucket) {
+        archive(bucket);
+        return backend.flush(bucket);
+    }
+
+    @Override
+    public void flush(OutputStream out, Bucket bucket) throws IOException {
+        archive(bucket);
+        backend.flush(out, bucket);
+    }
+
+    @Override
+    public Future<Void> send(CharSequence lines) {
+        return backend.send(lines);
+    }
+
+    @Override
+    public Concurrency getConcurrency() {
+        return backend.getConcurrency();
+    }
+
+    @Override
+    public BackendStats getStats() {
+        return backend.getStats();
+    }
+
+    /**
+     * Dumps an archive as Graphite plaintext, one flush at a time.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1) {
+            System.err.println("Usage: ArchiveBackend <archive file>");
+            System.exit(1);
+        }
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(args[0])));
+        BucketCodec codec = new BucketCodec();
+        GraphiteBackend text = new GraphiteBackend("localhost", 0);
+        long lastFlush = 0;
+        try {
+            while (true) {
+                byte[] frame = new byte[in.readInt()];
+                in.readFully(frame);
+                Bucket bucket = new Bucket();
+                long timestamp = codec.decode(frame, bucket);
+                bucket.setFlushTime(lastFlush > 0 && lastFlush < timestamp ? lastFlush : timestamp - 1000);
+                text.flush(System.out, bucket, timestamp);
+                lastFlush = timestamp;
+            }
+        } catch (EOFException ex) {
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -6,21 +6,51 @@ package com.ideeli.utils.jstatsd.backends;
 
 import com.ideeli.utils.jstatsd.Bucket;
 import java.io.IOException;
+import java.util.concurrent.Future;
 
 /**
+ * Where flushed buckets and proxied lines go. Flushes and sends return a
+ * future, done when the data was written or failed with the IOException that
+ * stopped it. Backends doing one thing at a time run them on the caller's
+ * thread and return them done.
  *
  * @author marc
  */
 public interface Backend {
 
     /**
+     * Which calls can be in progress at the same time.
+     */
+    public enum Concurrency {
+
+        // One call at a time, sends wait for a flush in progress
+        serial,
+        // Sends go on while a bucket is flushed, flushes one at a time
+        sendsDuringFlush
+    };
+
+    /**
+     * Writes the bucket as text on a local stream, on the caller's thread.
      *
      * @param out
      * @param bucket
      */
     public void flush(java.io.OutputStream out, Bucket bucket) throws IOException;
-    public void flush(Bucket bucket) throws IOException;
-    public void send(String message) throws IOException;
+
+    public Future<Void> flush(Bucket bucket);
+
+    /**
+     * Sends a batch of proxied lines. Lines of a failed send are left on the
+     * secondary storage (stdout).
+     *
+     * @param lines newline separated, the last newline is optional.
+     */
+    public Future<Void> send(CharSequence lines);
+
+    public Concurrency getConcurrency();
+
+    public BackendStats getStats();
+
     public void init();
 
     public TcpConfigData getConfig();
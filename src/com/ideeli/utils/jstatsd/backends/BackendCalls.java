@@ -0,0 +1,66 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.ideeli.utils.jstatsd.backends;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Helpers for backend futures.
+ *
+ * @author marc
+ */
+public class BackendCalls {
+
+    /**
+     * Runs a call on the caller's thread, for backends doing one thing at a
+     * time. The future is already done when returned.
+     */
+    public static Future<Void> inline(Callable<Void> call) {
+        FutureTask<Void> task = new FutureTask<Void>(call);
+        task.run();
+        return task;
+    }
+
+    /**
+     * A call that failed before it could run.
+     */
+    public static Future<Void> failed(final IOException ex) {
+        return inline(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                throw ex;
+            }
+        });
+    }
+
+    /**
+     * Waits for a backend call, failing with what made it fail.
+     */
+    public static void await(Future<Void> call) throws IOException {
+        try {
+            call.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for the backend");
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+}
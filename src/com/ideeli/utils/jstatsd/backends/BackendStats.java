@@ -0,0 +1,169 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.ideeli.utils.jstatsd.backends;
+
+import com.ideeli.utils.jstatsd.Bucket;
+import com.ideeli.utils.jstatsd.Jstatsd;
+import com.ideeli.utils.jstatsd.LatencyHistogram;
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Counts what a backend does and times its sends. Calls are wrapped before
+ * being run, on whatever thread runs them, so a send is timed from the moment
+ * it's queued: the latency a proxied line sees. Flushes are timed by
+ * {@link com.ideeli.utils.jstatsd.FlushTimings}.
+ *
+ * A send that fails, or is dropped because too many are queued, leaves its
+ * lines on the secondary storage (stdout), so callers don't have to wait for
+ * it to know.
+ *
+ * @author marc
+ */
+public class BackendStats {
+
+    final AtomicLong flushes = new AtomicLong();
+    final AtomicLong flushFailures = new AtomicLong();
+    final AtomicLong sends = new AtomicLong();
+    final AtomicLong lines = new AtomicLong();
+    final AtomicLong sendFailures = new AtomicLong();
+    // Sends that didn't fit on the queue
+    final AtomicLong sendDrops = new AtomicLong();
+    // Queued or being written
+    final AtomicInteger pending = new AtomicInteger();
+    // Since the last report
+    final LatencyHistogram sendLatency = new LatencyHistogram();
+    long reportedFailures = 0;
+    long reportedDrops = 0;
+
+    /**
+     * Lines on a buffer, the last one may not end on a newline.
+     */
+    public static int lines(CharSequence data) {
+        int n = 0;
+        for (int i = 0; i < data.length(); i++) {
+            if (data.charAt(i) == '\n') {
+                n++;
+            }
+        }
+        if (data.length() > 0 && data.charAt(data.length() - 1) != '\n') {
+            n++;
+        }
+        return n;
+    }
+
+    public Callable<Void> flushing(final Callable<Void> call) {
+        return new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                boolean ok = false;
+                try {
+                    call.call();
+                    ok = true;
+                    return null;
+                } finally {
+                    flushes.incrementAndGet();
+                    if (!ok) {
+                        flushFailures.incrementAndGet();
+                    }
+                }
+            }
+        };
+    }
+
+    public Callable<Void> sending(final CharSequence data, final Callable<Void> call) {
+        final long start = System.nanoTime();
+        pending.incrementAndGet();
+        return new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                try {
+                    call.call();
+                    sends.incrementAndGet();
+                    lines.addAndGet(lines(data));
+                    return null;
+                } catch (IOException ex) {
+                    sendFailures.incrementAndGet();
+                    Logger.getLogger(Jstatsd.class.getName()).log(Level.SEVERE, "Backend disconnected using secondary storage.");
+                    secondary(data);
+                    throw ex;
+                } finally {
+                    pending.decrementAndGet();
+                    sendLatency.record((System.nanoTime() - start) / 1000);
+                }
+            }
+        };
+    }
+
+    /**
+     * A send wrapped by sending() that was never run.
+     */
+    public void dropped(CharSequence data) {
+        pending.decrementAndGet();
+        sendDrops.incrementAndGet();
+        Logger.getLogger(Jstatsd.class.getName()).log(Level.WARNING, "Backend send queue full using secondary storage.");
+        secondary(data);
+    }
+
+    static void secondary(CharSequence data) {
+        System.out.print(data);
+        if (data.length() > 0 && data.charAt(data.length() - 1) != '\n') {
+            System.out.println();
+        }
+    }
+
+    /**
+     * Adds send latency (p50, p99 and max in microseconds) and the sends
+     * still pending as gauges, and failed and dropped sends as counters,
+     * since the last report.
+     */
+    public synchronized void report(Bucket bucket) {
+        if (sendLatency.getCount() > 0) {
+            bucket.addInternal("statsd.backend.send.p50_us", LatencyHistogram.percentile(50, sendLatency), Bucket.Type.g);
+            bucket.addInternal("statsd.backend.send.p99_us", LatencyHistogram.percentile(99, sendLatency), Bucket.Type.g);
+            bucket.addInternal("statsd.backend.send.max_us", sendLatency.getMax(), Bucket.Type.g);
+            sendLatency.reset();
+        }
+        bucket.addInternal("statsd.backend.send.pending", pending.get(), Bucket.Type.g);
+        long failures = sendFailures.get();
+        bucket.addInternal("statsd.backend.send_failures", failures - reportedFailures, Bucket.Type.c);
+        reportedFailures = failures;
+        long drops = sendDrops.get();
+        bucket.addInternal("statsd.backend.send_dropped", drops - reportedDrops, Bucket.Type.c);
+        reportedDrops = drops;
+    }
+
+    public long getFlushes() {
+        return flushes.get();
+    }
+
+    public long getFlushFailures() {
+        return flushFailures.get();
+    }
+
+    public long getSends() {
+        return sends.get();
+    }
+
+    public long getLines() {
+        return lines.get();
+    }
+
+    public long getSendFailures() {
+        return sendFailures.get();
+    }
+
+    public long getSendDrops() {
+        return sendDrops.get();
+    }
+
+    public int getPending() {
+        return pending.get();
+    }
+}
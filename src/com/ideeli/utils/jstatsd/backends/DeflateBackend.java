@@ -0,0 +1,197 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.ideeli.utils.jstatsd.backends;
+
+import com.ideeli.utils.jstatsd.Bucket;
+import com.ideeli.utils.jstatsd.Jstatsd;
+import com.ideeli.utils.jstatsd.networking.DeflateOutputStream;
+import com.jcraft.jzlib.JZlib;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Graphite plaintext sent through one persistent zlib stream to a jstatsd
+ * receiver (jstatsd.CompressedProxyPort), which inflates it and forwards it to
+ * carbon.
+ *
+ * Each flush ends on a sync flush point. Proxied lines are synced at most
+ * every syncMillis, so they get batched on the same deflate block.
+ *
+ * @author marc
+ */
+public class DeflateBackend extends GraphiteBackend {
+
+    final long syncMillis;
+    Socket socket;
+    DeflateOutputStream zout;
+    boolean dirty = false;
+    // Totals over all the connections
+    long rawBytes = 0;
+    long compressedBytes = 0;
+    long reportedRaw = 0;
+    long reportedCompressed = 0;
+    Timer syncer;
+
+    public DeflateBackend(String host, int port, long syncMillis) {
+        super(host, port);
+        this.syncMillis = syncMillis;
+    }
+
+    @Override
+    public void init() {
+        syncer = new Timer("Upstream sync", true);
+        syncer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                syncIfDirty();
+            }
+        }, syncMillis, syncMillis);
+    }
+
+    private DeflateOutputStream connect() throws IOException {
+        if (zout == null) {
+            socket = new Socket(getConfig().getHost(), getConfig().getPort());
+            zout = new DeflateOutputStream(socket.getOutputStream(), JZlib.Z_BEST_COMPRESSION);
+            Logger.getLogger(Jstatsd.class.getName()).log(Level.INFO, "Compressed upstream connected to {0}:{1}", new Object[]{getConfig().getHost(), "" + getConfig().getPort()});
+        }
+        return zout;
+    }
+
+    /**
+     * Drops the stream after a failure, the next call reconnects.
+     */
+    private void disconnect() {
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException ex) {
+            }
+            socket = null;
+        }
+        if (zout != null) {
+            rawBytes += zout.getRawBytes();
+            compressedBytes += zout.getCompressedBytes();
+            try {
+                // Frees the deflater, fails fast on the closed socket
+                zout.close();
+            } catch (IOException ex) {
+            }
+            zout = null;
+        }
+        dirty = false;
+    }
+
+    private void sync() throws IOException {
+        try {
+            zout.syncFlush();
+            dirty = false;
+        } catch (IOException ex) {
+            disconnect();
+            throw ex;
+        }
+    }
+
+    synchronized void syncIfDirty() {
+        if (!dirty) {
+            return;
+        }
+        try {
+            sync();
+        } catch (IOException ex) {
+            // Already dropped, nobody to hand it to on the timer
+            Logger.getLogger(Jstatsd.class.getName()).log(Level.SEVERE, "Compressed upstream disconnected: {0}", ex.getMessage());
+        }
+    }
+
+    /**
+     * One zlib stream, so one call at a time.
+     */
+    @Override
+    public Concurrency getConcurrency() {
+        return Concurrency.serial;
+    }
+
+    @Override
+    public Future<Void> send(final CharSequence lines) {
+        return BackendCalls.inline(stats.sending(lines, new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                write(lines.toString());
+                return null;
+            }
+        }));
+    }
+
+    private synchronized void write(String message) throws IOException {
+        try {
+            connect().write(message.getBytes("UTF-8"));
+            if (!message.endsWith("\n")) {
+                zout.write('\n');
+            }
+            dirty = true;
+        } catch (IOException ex) {
+            disconnect();
+            throw ex;
+        }
+    }
+
+    @Override
+    public Future<Void> flush(final Bucket bucket) {
+        return BackendCalls.inline(stats.flushing(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                deflate(bucket);
+                return null;
+            }
+        }));
+    }
+
+    private synchronized void deflate(Bucket bucket) throws IOException {
+        reportRatio(bucket);
+        try {
+            write(connect(), bucket, bucket.getFlushEnd());
+        } catch (IOException ex) {
+            disconnect();
+            throw ex;
+        }
+        sync();
+    }
+
+    /**
+     * Adds the bytes sent since the last flush as internal counters, and logs
+     * the compression ratio so far.
+     */
+    private void reportRatio(Bucket bucket) {
+        long raw = getRawBytes();
+        long compressed = getCompressedBytes();
+        bucket.addInternal("statsd.upstream.raw_bytes", raw - reportedRaw, Bucket.Type.c);
+        bucket.addInternal("statsd.upstream.compressed_bytes", compressed - reportedCompressed, Bucket.Type.c);
+        reportedRaw = raw;
+        reportedCompressed = compressed;
+        Logger.getLogger(Jstatsd.class.getName()).log(Level.INFO, "Upstream compression ratio: {0}", getRatio());
+    }
+
+    public synchronized long getRawBytes() {
+        return rawBytes + (zout != null ? zout.getRawBytes() : 0);
+    }
+
+    public synchronized long getCompressedBytes() {
+        return compressedBytes + (zout != null ? zout.getCompressedBytes() : 0);
+    }
+
+    /**
+     * Raw bytes per compressed byte, since startup.
+     */
+    public synchronized double getRatio() {
+        long compressed = getCompressedBytes();
+        return compressed == 0 ? 0 : (double) getRawBytes() / compressed;
+    }
+}
@@ -5,19 +5,46 @@
 package com.ideeli.utils.jstatsd.backends;
 
 import com.ideeli.utils.jstatsd.Bucket;
+import com.ideeli.utils.jstatsd.FlushTimings;
+import com.ideeli.utils.jstatsd.FlushTimings.Phase;
 import com.ideeli.utils.jstatsd.Jstatsd;
+import com.ideeli.utils.jstatsd.OffHeapStore;
+import com.ideeli.utils.jstatsd.PackedTimers;
+import com.ideeli.utils.jstatsd.Reservoir;
+import com.ideeli.utils.jstatsd.Tags;
+import com.ideeli.utils.jstatsd.networking.ChunkedOutputStream;
 import com.ideeli.utils.jstatsd.networking.Connection;
 import com.ideeli.utils.jstatsd.networking.ConnectionPool;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.OutputStreamWriter;
-import java.util.Collections;
-import java.util.HashMap;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
+ * Graphite plaintext over pooled connections.
+ *
+ * Flushes run one at a time on their own thread, proxied lines on another,
+ * each on its own pooled connection, so a line doesn't wait for a flush to
+ * end. A flush leaves one connection of the pool to proxied lines.
  *
  * @author marc
  */
@@ -25,6 +52,19 @@ public class GraphiteBackend implements Backend {
 
     TcpConfigData config;
     ConnectionPool pool;
+    // Parallel flush, fewer keys than this per shard aren't worth a thread
+    static final int MIN_SHARD_KEYS = 1000;
+    int shards = 1;
+    ExecutorService flushPool;
+    // Tags as path segments instead of Graphite 1.1 ";tag=value"
+    boolean tagsAsPath = false;
+    FlushTimings timings = new FlushTimings();
+    final BackendStats stats = new BackendStats();
+    // Proxied batches waiting past this are dropped to stdout, the caller
+    // writing them would put them ahead of the queued ones
+    static final int SEND_QUEUE = 1024;
+    ExecutorService flusher;
+    ExecutorService sender;
 
     public GraphiteBackend(String host, int port) {
         config = new TcpConfigData(host, port);
@@ -36,138 +76,616 @@ public class GraphiteBackend implements Backend {
     @Override
     public void init() {
         pool = new ConnectionPool(getConfig().getHost(), getConfig().getPort());    
+        flusher = Executors.newSingleThreadExecutor(daemonThreads("Graphite flush"));
+        // One thread keeps lines in order
+        sender = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(SEND_QUEUE),
+                daemonThreads("Graphite proxy"), new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    static ThreadFactory daemonThreads(final String name) {
+        return new ThreadFactory() {
+            final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, name + " " + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+
+    @Override
+    public Concurrency getConcurrency() {
+        return Concurrency.sendsDuringFlush;
+    }
+
+    @Override
+    public BackendStats getStats() {
+        return stats;
     }
     
     @Override
     public TcpConfigData getConfig() {
         return config;
     }
+
+    public ConnectionPool getPool() {
+        return pool;
+    }
+
+    public void setTagsAsPath(boolean tagsAsPath) {
+        this.tagsAsPath = tagsAsPath;
+    }
+
+    public void setTimings(FlushTimings timings) {
+        this.timings = timings;
+    }
+
+    /**
+     * Times formatting one type after another on a stream, leaving out the
+     * time blocked on the socket.
+     */
+    class Lap {
+
+        final ChunkedOutputStream chunks;
+        long start;
+        long stalled;
+
+        Lap(ChunkedOutputStream chunks) {
+            this.chunks = chunks;
+            restart();
+        }
+
+        final void restart() {
+            start = System.nanoTime();
+            stalled = chunks.getStallNanos();
+        }
+
+        void end(Phase phase) {
+            timings.add(phase, System.nanoTime() - start - (chunks.getStallNanos() - stalled));
+            restart();
+        }
+    }
+
+    /**
+     * Once the stream is closed.
+     */
+    void timeOutput(ChunkedOutputStream chunks) {
+        timings.add(Phase.write, chunks.getWriteNanos());
+        timings.add(Phase.stall, chunks.getStallNanos());
+    }
+
+    Connection checkout() throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        try {
+            return pool.getConnection();
+        } finally {
+            timings.add(Phase.checkout, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Name and tags of a bucket key, ready to go around a metric suffix.
+     */
+    String[] metric(String key) {
+        String[] parts = Tags.split(key);
+        if (tagsAsPath && parts[1].length() > 0) {
+            parts[0] += Tags.asPath(parts[1]);
+            parts[1] = "";
+        }
+        return parts;
+    }
     
     @Override
-    public synchronized void send(String message) throws IOException {
+    public Future<Void> send(final CharSequence lines) {
+        Callable<Void> call = stats.sending(lines, new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                write(lines);
+                return null;
+            }
+        });
+        try {
+            return sender.submit(call);
+        } catch (RejectedExecutionException ex) {
+            stats.dropped(lines);
+            return BackendCalls.failed(new IOException("Proxy send queue full"));
+        }
+    }
+
+    void write(CharSequence lines) throws IOException {
         Connection c;
         try {
             c = pool.getConnection();
         } catch (InterruptedException ex) {
-            Logger.getLogger(Jstatsd.class.getName()).log(Level.SEVERE, null, ex);
-            return;
+            throw new InterruptedIOException("Interrupted waiting for a connection");
         }
-        System.out.println("Sendind data");
         try {
             OutputStreamWriter osm=new OutputStreamWriter(c.getSocket().getOutputStream());
-            osm.write(message);
+            osm.append(lines);
+            // The proxy's line decoder strips it
+            if (lines.length() == 0 || lines.charAt(lines.length() - 1) != '\n') {
+                osm.write('\n');
+            }
             osm.flush();
         } catch (IOException ex) {
-            Logger.getLogger(GraphiteBackend.class.getName()).log(Level.SEVERE, null, ex);
-        } finally {
-            c.returnToPool();
+            // Not back on the pool, it's broken
+            c.close();
+            throw ex;
         }
+        c.returnToPool();
     }
     
+    /**
+     * Splits the flush in up to shards parts written in parallel, each on its
+     * own pooled connection. 1 writes everything on a single one.
+     */
+    public void setFlushShards(int shards) {
+        this.shards = shards;
+    }
+
     @Override
-    public synchronized void flush(Bucket bucket) throws IOException  {
+    public Future<Void> flush(final Bucket bucket) {
+        return flusher.submit(stats.flushing(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                write(bucket);
+                return null;
+            }
+        }));
+    }
+
+    synchronized void write(Bucket bucket) throws IOException  {
+        int n = Math.min(shards, pool.getCapacity() - 1);
+        if (n > 1 && bucket.getStore() == null && bucket.getKeyCount() >= n * MIN_SHARD_KEYS) {
+            flushSharded(bucket, n);
+            return;
+        }
         Connection c;
         try {
-            c = pool.getConnection();
-        }  catch (InterruptedException ex) {
-            Logger.getLogger(Jstatsd.class.getName()).log(Level.SEVERE, null, ex);
-            return;
+            c = checkout();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for a connection");
         }
-        System.out.println("Flushing buket " + bucket);
         try {
-            flush(c.getSocket().getOutputStream(), bucket);
+            write(c.getSocket().getOutputStream(), bucket, bucket.getFlushEnd());
         } catch (IOException ex) {
-            Logger.getLogger(GraphiteBackend.class.getName()).log(Level.SEVERE, null, ex);
-        } finally {
-            c.returnToPool();
+            // Not back on the pool, it's broken
+            c.close();
+            throw ex;
         }
+        c.returnToPool();
     }
     
     @Override
     public synchronized void flush(java.io.OutputStream out, Bucket bucket) {
-        // Cleanup Hashes
+        flush(out, bucket, bucket.getFlushEnd());
+    }
+
+    /**
+     * Writes the bucket as if it was flushed at currentFlush. Failures are
+     * logged.
+     */
+    public synchronized void flush(java.io.OutputStream out, Bucket bucket, long currentFlush) {
         try {
-            HashMap<String, Long> CountHashes = bucket.getCountHashes();
-            HashMap<String, LinkedList<Long>> TimeHashes = bucket.getTimeHashes();
-            HashMap<String, LinkedList<Long>> GaugeHashes = bucket.getGaugeHashes();
+            write(out, bucket, currentFlush);
+        } catch (IOException ex) {
+            Logger.getLogger(GraphiteBackend.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
 
-            long currentFlush = System.currentTimeMillis();
+    /**
+     * Writes the bucket as if it was flushed at currentFlush. The bucket is
+     * only cleaned up once everything reached out.
+     */
+    synchronized void write(java.io.OutputStream out, Bucket bucket, final long currentFlush) throws IOException {
+        // Written while the rest is being formatted, with bounded memory
+        final ChunkedOutputStream chunks = new ChunkedOutputStream(out);
+        // Cleanup Hashes
+        try {
             long lastFlush = bucket.getLastFlush();
 
             Logger.getLogger(Jstatsd.class.getName()).log(Level.FINE, "Flushing... last {0} ms.", (currentFlush - lastFlush));
-            double c_interval = (currentFlush - lastFlush) / 1000.0;
-            OutputStreamWriter osm = new OutputStreamWriter(out);
-            for (Map.Entry<String, Long> set : CountHashes.entrySet()) {
-                double r = set.getValue();
-                double rs = c_interval / r;
-                osm.write("stats." + set.getKey() + " " + rs + " " + currentFlush + '\n');
-                osm.write("stats_counts." + set.getKey() + " " + r + " " + currentFlush + '\n');
+            final double c_interval = (currentFlush - lastFlush) / 1000.0;
+            final OutputStreamWriter osm = new OutputStreamWriter(chunks);
+            final Lap lap = new Lap(chunks);
+            if (bucket.getStore() != null) {
+                // Straight from the store, no heap copies. Types come mixed,
+                // each lap goes to the type that was being written
+                class StoreVisitor implements OffHeapStore.Visitor {
+
+                    Phase last = Phase.counters;
+
+                    void next(Phase phase) {
+                        if (phase != last) {
+                            lap.end(last);
+                            last = phase;
+                        }
+                    }
+
+                    @Override
+                    public void counter(String name, long sum) throws IOException {
+                        next(Phase.counters);
+                        writeCounter(osm, name, sum, c_interval, currentFlush);
+                    }
+
+                    @Override
+                    public void gauge(String name, long value) throws IOException {
+                        next(Phase.gauges);
+                        writeGauge(osm, name, value, currentFlush);
+                    }
+
+                    @Override
+                    public void timer(String name, long[] samples, int count) throws IOException {
+                        next(Phase.timers);
+                        writeTimer(osm, name, samples, count, currentFlush);
+                    }
+
+                    void done() {
+                        lap.end(last);
+                    }
+                }
+                StoreVisitor visitor = new StoreVisitor();
+                bucket.getStore().visit(visitor);
+                visitor.done();
+                osm.flush();
+                chunks.close();
+                timeOutput(chunks);
+                bucket.cleanup();
+                bucket.setFlushTime(currentFlush);
+                return;
             }
+            writeCounters(osm, bucket.getCountHashes().entrySet(), c_interval, currentFlush);
             osm.flush();
-            for (Map.Entry<String, LinkedList<Long>> set : GaugeHashes.entrySet()) {
-                LinkedList<Long> lst = set.getValue();
-                float d = 0.0f;
-                for (Long l : lst) {
-                    d += l.longValue();
+            lap.end(Phase.counters);
+            writeGauges(osm, bucket.getGaugeHashes().entrySet(), currentFlush);
+            lap.end(Phase.gauges);
+            bucket.settle();
+            PackedTimers packed = bucket.getPacked();
+            if (packed != null) {
+                // Decoded straight from the chunks, no heap copies
+                writePacked(osm, packed, packed.getChains().entrySet(), currentFlush);
+            } else {
+                writeTimers(osm, bucket.getTimeLists().entrySet(), currentFlush);
+            }
+            if (bucket.getReservoirs() != null) {
+                // getTimeHashes would hand over copies of the samples
+                writeReservoirs(osm, bucket.getReservoirs().entrySet(), currentFlush);
+            }
+            osm.flush();
+            lap.end(Phase.timers);
+            chunks.close();
+            timeOutput(chunks);
+            bucket.cleanup();
+            bucket.setFlushTime(currentFlush);
+        } catch (IOException ex) {
+            try {
+                // Stops its writer
+                chunks.close();
+            } catch (IOException ex1) {
+            }
+            throw ex;
+        }
+    }
+
+    void writeCounters(Writer osm, Iterable<Map.Entry<String, AtomicLong>> counters, double c_interval, long currentFlush) throws IOException {
+        for (Map.Entry<String, AtomicLong> set : counters) {
+            writeCounter(osm, set.getKey(), set.getValue().get(), c_interval, currentFlush);
+        }
+    }
+
+    void writeGauges(Writer osm, Iterable<Map.Entry<String, Bucket.Gauge>> gauges, long currentFlush) throws IOException {
+        for (Map.Entry<String, Bucket.Gauge> set : gauges) {
+            writeGauge(osm, set.getKey(), set.getValue().get(), currentFlush);
+        }
+    }
+
+    void writeTimers(Writer osm, Iterable<Map.Entry<String, LinkedList<Long>>> timers, long currentFlush) throws IOException {
+        long[] samples = new long[16];
+        for (Map.Entry<String, LinkedList<Long>> set : timers) {
+            LinkedList<Long> lst = set.getValue();
+            int count;
+            synchronized (lst) {
+                count = lst.size();
+                if (samples.length < count) {
+                    samples = new long[Math.max(count, samples.length * 2)];
                 }
-                long r = (long) (d / (float) lst.size());
-                osm.write("stats.gauges." + set.getKey() + " " + r + " " + currentFlush + '\n');
-            }
-            for (Map.Entry<String, LinkedList<Long>> set : TimeHashes.entrySet()) {
-                LinkedList<Long> lst = set.getValue();
-                String key = set.getKey();
-                int count = lst.size();
-                Collections.sort(lst, null);
-                long min = lst.get(0);
-                long max = lst.get(count - 1);
-
-                LinkedList<Long> cumulativeList = new LinkedList<Long>();
-                cumulativeList.add(min);
-                for (int i = 1; i < count; i++) {
-                    cumulativeList.add(lst.get(i) + cumulativeList.get(i - 1));
+                int i = 0;
+                for (Long l : lst) {
+                    samples[i++] = l;
                 }
+            }
+            Arrays.sort(samples, 0, count);
+            writeTimer(osm, set.getKey(), samples, count, currentFlush);
+        }
+    }
+
+    void writePacked(final Writer osm, PackedTimers packed, Iterable<Map.Entry<String, PackedTimers.Chain>> chains, final long currentFlush) throws IOException {
+        packed.visit(chains, new PackedTimers.Visitor() {
+            @Override
+            public void timer(String name, long[] samples, int count) throws IOException {
+                writeTimer(osm, name, samples, count, currentFlush);
+            }
+        });
+    }
+
+    void writeReservoirs(Writer osm, Iterable<Map.Entry<String, Reservoir>> reservoirs, long currentFlush) throws IOException {
+        for (Map.Entry<String, Reservoir> set : reservoirs) {
+            writeReservoir(osm, set.getKey(), set.getValue(), currentFlush);
+        }
+    }
 
-                long sum = min;
-                long mean = min;
-                long maxAtThreshold = max;
+    /**
+     * @param c_interval seconds the bucket was receiving samples, the rate is
+     * per second over it.
+     */
+    void writeCounter(Writer osm, String name, double r, double c_interval, long currentFlush) throws IOException {
+        double rs = c_interval > 0 ? r / c_interval : r;
+        String[] m = metric(name);
+        osm.write("stats." + m[0] + m[1] + " " + rs + " " + currentFlush + '\n');
+        osm.write("stats_counts." + m[0] + m[1] + " " + r + " " + currentFlush + '\n');
+    }
 
-                double pct = 90.0;
+    void writeGauge(Writer osm, String name, long r, long currentFlush) throws IOException {
+        String[] m = metric(name);
+        osm.write("stats.gauges." + m[0] + m[1] + " " + r + " " + currentFlush + '\n');
+    }
 
-                if (count > 1) {
-                    int thresholdIndex = (int) Math.round(((100.0 - pct) / 100.0) * (double) count);
-                    int numInThreshold = count - thresholdIndex;
+    /**
+     * One part of a sharded flush: a slice of every type.
+     */
+    static class Shard {
 
-                    maxAtThreshold = lst.get(numInThreshold - 1);
-                    sum = cumulativeList.get(numInThreshold - 1);
-                    mean = sum / numInThreshold;
+        final List<Map.Entry<String, AtomicLong>> counters = new ArrayList<Map.Entry<String, AtomicLong>>();
+        final List<Map.Entry<String, Bucket.Gauge>> gauges = new ArrayList<Map.Entry<String, Bucket.Gauge>>();
+        final List<Map.Entry<String, LinkedList<Long>>> timers = new ArrayList<Map.Entry<String, LinkedList<Long>>>();
+        final List<Map.Entry<String, Reservoir>> reservoirs = new ArrayList<Map.Entry<String, Reservoir>>();
+        final List<Map.Entry<String, PackedTimers.Chain>> packed = new ArrayList<Map.Entry<String, PackedTimers.Chain>>();
+        Connection connection;
+    }
+
+    /**
+     * Deals the keys round robin over n shards and writes them in parallel.
+     * All the connections are taken before writing anything, so a backend
+     * failure leaves nothing half sent. If a shard fails the bucket is left
+     * as it was, for the caller's fallback, and the failure thrown.
+     */
+    void flushSharded(Bucket bucket, int n) throws IOException {
+        final long currentFlush = bucket.getFlushEnd();
+        final double c_interval = (currentFlush - bucket.getLastFlush()) / 1000.0;
+        final Shard[] shard = new Shard[n];
+        for (int i = 0; i < n; i++) {
+            shard[i] = new Shard();
+        }
+        int i = 0;
+        for (Map.Entry<String, AtomicLong> e : bucket.getCountHashes().entrySet()) {
+            shard[i++ % n].counters.add(e);
+        }
+        for (Map.Entry<String, Bucket.Gauge> e : bucket.getGaugeHashes().entrySet()) {
+            shard[i++ % n].gauges.add(e);
+        }
+        bucket.settle();
+        final PackedTimers packed = bucket.getPacked();
+        if (packed != null) {
+            for (Map.Entry<String, PackedTimers.Chain> e : packed.getChains().entrySet()) {
+                shard[i++ % n].packed.add(e);
+            }
+        } else {
+            for (Map.Entry<String, LinkedList<Long>> e : bucket.getTimeLists().entrySet()) {
+                shard[i++ % n].timers.add(e);
+            }
+        }
+        if (bucket.getReservoirs() != null) {
+            for (Map.Entry<String, Reservoir> e : bucket.getReservoirs().entrySet()) {
+                shard[i++ % n].reservoirs.add(e);
+            }
+        }
+        try {
+            for (Shard s : shard) {
+                s.connection = checkout();
+            }
+        } catch (InterruptedException ex) {
+            release(shard, true);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for a connection");
+        } catch (IOException ex) {
+            release(shard, true);
+            throw ex;
+        }
+        if (flushPool == null) {
+            flushPool = Executors.newFixedThreadPool(pool.getCapacity(), daemonThreads("Flush shard"));
+        }
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(n);
+        for (final Shard s : shard) {
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    Connection c = s.connection;
+                    boolean sent = false;
+                    try {
+                        ChunkedOutputStream chunks = new ChunkedOutputStream(c.getSocket().getOutputStream());
+                        try {
+                            Writer osm = new OutputStreamWriter(chunks);
+                            Lap lap = new Lap(chunks);
+                            writeCounters(osm, s.counters, c_interval, currentFlush);
+                            osm.flush();
+                            lap.end(Phase.counters);
+                            writeGauges(osm, s.gauges, currentFlush);
+                            osm.flush();
+                            lap.end(Phase.gauges);
+                            writeTimers(osm, s.timers, currentFlush);
+                            if (packed != null) {
+                                writePacked(osm, packed, s.packed, currentFlush);
+                            }
+                            writeReservoirs(osm, s.reservoirs, currentFlush);
+                            osm.flush();
+                            lap.end(Phase.timers);
+                        } finally {
+                            chunks.close();
+                        }
+                        timeOutput(chunks);
+                        sent = true;
+                        return null;
+                    } finally {
+                        if (!sent) {
+                            // Not back on the pool, it's broken
+                            c.close();
+                            s.connection = null;
+                        }
+                    }
                 }
-                String clean_pct = "" + (double) pct;
-                clean_pct = clean_pct.replace('.', '_');
-                osm.write("stats.timers." + key + ".mean_" + clean_pct + " " + mean + " " + currentFlush + "\n");
-                osm.write("stats.timers." + key + ".upper_" + clean_pct + " " + maxAtThreshold + " " + currentFlush + "\n");
-                osm.write("stats.timers." + key + ".sum_" + clean_pct + " " + sum + " " + currentFlush + "\n");
-
-                sum = cumulativeList.get(count - 1);
-                mean = sum / count;
-
-                long sumOfDiffs = 0;
-                for (int i = 0; i < count; i++) {
-                    sumOfDiffs += (lst.get(i) - mean) * (lst.get(i) - mean);
+            });
+        }
+        IOException failure = null;
+        try {
+            for (Future<Void> f : flushPool.invokeAll(tasks)) {
+                try {
+                    f.get();
+                } catch (ExecutionException ex) {
+                    Logger.getLogger(GraphiteBackend.class.getName()).log(Level.SEVERE, null, ex.getCause());
+                    if (failure == null) {
+                        failure = ex.getCause() instanceof IOException ? (IOException) ex.getCause() : new IOException(ex.getCause());
+                    }
                 }
-                double stddev = Math.sqrt(sumOfDiffs / count);
+            }
+        } catch (InterruptedException ex) {
+            // Shards may still be writing, what reached out is unknown
+            release(shard, false);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted flushing shards");
+        }
+        // Failed shards closed theirs already
+        release(shard, true);
+        if (failure != null) {
+            throw failure;
+        }
+        bucket.cleanup();
+        bucket.setFlushTime(currentFlush);
+    }
 
-                osm.write("stats.timers." + key + ".std " + stddev + " " + currentFlush + "\n");
-                osm.write("stats.timers." + key + ".upper " + max + " " + currentFlush + "\n");
-                osm.write("stats.timers." + key + ".lower " + min + " " + currentFlush + "\n");
-                osm.write("stats.timers." + key + ".count " + count + " " + currentFlush + "\n");
-                osm.write("stats.timers." + key + ".sum " + sum + " " + currentFlush + "\n");
-                osm.write("stats.timers." + key + ".mean " + mean + " " + currentFlush + "\n");
+    /**
+     * @param reuse false to close the connections instead of returning them
+     * to the pool.
+     */
+    private void release(Shard[] shard, boolean reuse) {
+        for (Shard s : shard) {
+            Connection c = s.connection;
+            if (c != null) {
+                if (reuse) {
+                    c.returnToPool();
+                } else {
+                    c.close();
+                }
+                s.connection = null;
             }
-            osm.flush();
-            bucket.cleanup();
-            bucket.setFlushTime(currentFlush);
-        } catch (IOException ex) {
-            Logger.getLogger(GraphiteBackend.class.getName()).log(Level.SEVERE, null, ex);
         }
     }
+
+    /**
+     * Same stats as writeTimer. Count, sum, upper, lower, mean and std are
+     * exact, the 90th percentile ones come from the reservoir sample.
+     */
+    void writeReservoir(Writer osm, String name, Reservoir res, long currentFlush) throws IOException {
+        long[] lst;
+        long count;
+        long sum;
+        double sumSquares;
+        long min;
+        long max;
+        synchronized (res) {
+            lst = res.sorted();
+            count = res.getCount();
+            sum = res.getSum();
+            sumSquares = res.getSumSquares();
+            min = res.getMin();
+            max = res.getMax();
+        }
+        if (count == lst.length) {
+            // Nothing was left out
+            writeTimer(osm, name, lst, lst.length, currentFlush);
+            return;
+        }
+        String[] m = metric(name);
+        String key = m[0];
+        String tags = m[1];
+        double pct = 90.0;
+        int numInSample = lst.length - (int) Math.round(((100.0 - pct) / 100.0) * (double) lst.length);
+        long numInThreshold = count - Math.round(((100.0 - pct) / 100.0) * (double) count);
+        long sampleSum = 0;
+        for (int i = 0; i < numInSample; i++) {
+            sampleSum += lst[i];
+        }
+        long mean = sampleSum / numInSample;
+        long maxAtThreshold = lst[numInSample - 1];
+        String clean_pct = "" + pct;
+        clean_pct = clean_pct.replace('.', '_');
+        osm.write("stats.timers." + key + ".mean_" + clean_pct + tags + " " + mean + " " + currentFlush + "\n");
+        osm.write("stats.timers." + key + ".upper_" + clean_pct + tags + " " + maxAtThreshold + " " + currentFlush + "\n");
+        osm.write("stats.timers." + key + ".sum_" + clean_pct + tags + " " + (mean * numInThreshold) + " " + currentFlush + "\n");
+
+        double exactMean = (double) sum / count;
+        double stddev = Math.sqrt(Math.max(0, sumSquares / count - exactMean * exactMean));
+
+        osm.write("stats.timers." + key + ".std" + tags + " " + stddev + " " + currentFlush + "\n");
+        osm.write("stats.timers." + key + ".upper" + tags + " " + max + " " + currentFlush + "\n");
+        osm.write("stats.timers." + key + ".lower" + tags + " " + min + " " + currentFlush + "\n");
+        osm.write("stats.timers." + key + ".count" + tags + " " + count + " " + currentFlush + "\n");
+        osm.write("stats.timers." + key + ".sum" + tags + " " + sum + " " + currentFlush + "\n");
+        osm.write("stats.timers." + key + ".mean" + tags + " " + (sum / count) + " " + currentFlush + "\n");
+    }
+
+    /**
+     * @param lst sorted samples, only the first count are used.
+     */
+    void writeTimer(Writer osm, String name, long[] lst, int count, long currentFlush) throws IOException {
+        String[] m = metric(name);
+        String key = m[0];
+        String tags = m[1];
+        long min = lst[0];
+        long max = lst[count - 1];
+
+        long sum = min;
+        long mean = min;
+        long maxAtThreshold = max;
+
+        double pct = 90.0;
+
+        if (count > 1) {
+            int thresholdIndex = (int) Math.round(((100.0 - pct) / 100.0) * (double) count);
+            int numInThreshold = count - thresholdIndex;
+
+            maxAtThreshold = lst[numInThreshold - 1];
+            sum = 0;
+            for (int i = 0; i < numInThreshold; i++) {
+                sum += lst[i];
+            }
+            mean = sum / numInThreshold;
+        }
+        String clean_pct = "" + pct;
+        clean_pct = clean_pct.replace('.', '_');
+        osm.write("stats.timers." + key + ".mean_" + clean_pct + tags + " " + mean + " " + currentFlush + "\n");
+        osm.write("stats.timers." + key + ".upper_" + clean_pct + tags + " " + maxAtThreshold + " " + currentFlush + "\n");
+        osm.write("stats.timers." + key + ".sum_" + clean_pct + tags + " " + sum + " " + currentFlush + "\n");
+
+        sum = 0;
+        for (int i = 0; i < count; i++) {
+            sum += lst[i];
+        }
+        mean = sum / count;
+
+        long sumOfDiffs = 0;
+        for (int i = 0; i < count; i++) {
+            sumOfDiffs += (lst[i] - mean) * (lst[i] - mean);
+        }
+        double stddev = Math.sqrt(sumOfDiffs / count);
+
+        osm.write("stats.timers." + key + ".std" + tags + " " + stddev + " " + currentFlush + "\n");
+        osm.write("stats.timers." + key + ".upper" + tags + " " + max + " " + currentFlush + "\n");
+        osm.write("stats.timers." + key + ".lower" + tags + " " + min + " " + currentFlush + "\n");
+        osm.write("stats.timers." + key + ".count" + tags + " " + count + " " + currentFlush + "\n");
+        osm.write("stats.timers." + key + ".sum" + tags + " " + sum + " " + currentFlush + "\n");
+        osm.write("stats.timers." + key + ".mean" + tags + " " + mean + " " + currentFlush + "\n");
+    }
 }
@@ -0,0 +1,144 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.ideeli.utils.jstatsd.backends;
+
+import com.ideeli.utils.jstatsd.Bucket;
+import com.ideeli.utils.jstatsd.BucketCodec;
+import com.ideeli.utils.jstatsd.Jstatsd;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Ships each flushed bucket, unaggregated but merge ready, to a central
+ * jstatsd (its jstatsd.RelayPort), which merges it with the other edges
+ * before computing the stats. Proxied lines go through the same link.
+ *
+ * @author marc
+ */
+public class RelayBackend implements Backend {
+
+    TcpConfigData config;
+    // Only to render the bucket as text on the debug/fallback path
+    GraphiteBackend text;
+    Socket socket;
+    DataOutputStream out;
+    // Encoding state of the current connection
+    BucketCodec codec;
+    final BackendStats stats = new BackendStats();
+
+    public RelayBackend(String host, int port) {
+        config = new TcpConfigData(host, port);
+        text = new GraphiteBackend(host, port);
+    }
+
+    @Override
+    public void init() {
+    }
+
+    @Override
+    public TcpConfigData getConfig() {
+        return config;
+    }
+
+    private DataOutputStream connect() throws IOException {
+        if (out == null) {
+            socket = new Socket(config.getHost(), config.getPort());
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 65536));
+            codec = new BucketCodec();
+            Logger.getLogger(Jstatsd.class.getName()).log(Level.INFO, "Relay connected to {0}:{1}", new Object[]{config.getHost(), "" + config.getPort()});
+        }
+        return out;
+    }
+
+    private void disconnect() {
+        out = null;
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException ex) {
+            }
+            socket = null;
+        }
+    }
+
+    private void writeFrame(byte[] frame) throws IOException {
+        try {
+            DataOutputStream link = connect();
+            link.writeInt(frame.length);
+            link.write(frame);
+            link.flush();
+        } catch (IOException ex) {
+            disconnect();
+            throw ex;
+        }
+    }
+
+    /**
+     * One link, so one call at a time.
+     */
+    @Override
+    public Concurrency getConcurrency() {
+        return Concurrency.serial;
+    }
+
+    @Override
+    public BackendStats getStats() {
+        return stats;
+    }
+
+    @Override
+    public Future<Void> send(final CharSequence lines) {
+        return BackendCalls.inline(stats.sending(lines, new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                write(lines.toString());
+                return null;
+            }
+        }));
+    }
+
+    private synchronized void write(String message) throws IOException {
+        byte[] line = message.getBytes("UTF-8");
+        boolean newLine = message.endsWith("\n");
+        byte[] frame = new byte[line.length + (newLine ? 1 : 2)];
+        frame[0] = BucketCodec.LINES;
+        System.arraycopy(line, 0, frame, 1, line.length);
+        if (!newLine) {
+            frame[frame.length - 1] = '\n';
+        }
+        writeFrame(frame);
+    }
+
+    @Override
+    public Future<Void> flush(final Bucket bucket) {
+        return BackendCalls.inline(stats.flushing(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                ship(bucket);
+                return null;
+            }
+        }));
+    }
+
+    private synchronized void ship(Bucket bucket) throws IOException {
+        long currentFlush = bucket.getFlushEnd();
+        connect();
+        writeFrame(codec.encode(bucket, currentFlush));
+        bucket.cleanup();
+        bucket.setFlushTime(currentFlush);
+    }
+
+    @Override
+    public void flush(OutputStream out, Bucket bucket) throws IOException {
+        text.flush(out, bucket);
+    }
+}
@@ -8,35 +8,92 @@ import java.nio.ByteBuffer;
 import java.nio.channels.DatagramChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
+import java.util.ArrayList;
 import java.util.Iterator;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public class ASyncUDPSrv {
 
     static int BUF_SZ = 1024;
-    ExecutorService exec = Executors.newCachedThreadPool();
+    // Max datagrams handed to a single dispatch task
+    static int MAX_BATCH = 64;
+    UdpDispatch exec;
     Selector selector;
     int Port;
     UDPConsumer consumer;
+    // Bigger datagrams are truncated
+    int maxDatagram = BUF_SZ;
+    // SO_RCVBUF, 0 leaves the OS default
+    int receiveBuffer = 0;
+    // Null unless capturing
+    PacketCapture capture;
+    // More ports on the same selector thread
+    List<Integer> extraPorts = new ArrayList<Integer>();
 
     public ASyncUDPSrv(int Port, UDPConsumer consumer) {
+        this(Port, consumer, new UdpDispatch(UdpDispatch.Mode.cached, 1, 1));
+    }
+
+    public ASyncUDPSrv(int Port, UDPConsumer consumer, UdpDispatch dispatch) {
         this.Port = Port;
         this.consumer = consumer;
+        this.exec = dispatch;
+    }
+
+    public UdpDispatch getDispatch() {
+        return exec;
+    }
+
+    public void setMaxDatagram(int maxDatagram) {
+        this.maxDatagram = maxDatagram;
+    }
+
+    public void setReceiveBuffer(int receiveBuffer) {
+        this.receiveBuffer = receiveBuffer;
+    }
+
+    public void setCapture(PacketCapture capture) {
+        this.capture = capture;
+    }
+
+    /**
+     * Listens on another port too, consumers get it along with the data.
+     */
+    public void addPort(int port) {
+        extraPorts.add(port);
     }
 
     class Con {
 
         ByteBuffer req;
         SocketAddress sa;
+        final int port;
 
-        public Con() {
-            req = ByteBuffer.allocate(BUF_SZ);
+        public Con(int port) {
+            req = ByteBuffer.allocate(maxDatagram);
+            this.port = port;
         }
     }
 
+    private void listen(int port) throws IOException {
+        DatagramChannel channel = DatagramChannel.open();
+        InetSocketAddress isa = new InetSocketAddress(port);
+        if (receiveBuffer > 0) {
+            channel.socket().setReceiveBufferSize(receiveBuffer);
+            if (channel.socket().getReceiveBufferSize() < receiveBuffer) {
+                // Capped by net.core.rmem_max
+                Logger.getLogger(Jstatsd.class.getName()).log(Level.WARNING, "UDP receive buffer is {0} bytes, {1} asked. Raise net.core.rmem_max",
+                        new Object[]{channel.socket().getReceiveBufferSize(), receiveBuffer});
+            }
+        }
+        channel.socket().bind(isa);
+        channel.configureBlocking(false);
+        SelectionKey clientKey = channel.register(selector, SelectionKey.OP_READ);
+        clientKey.attach(new Con(port));
+    }
+
     public void start() {
         Thread UDPServerT;
         UDPServerT = new Thread(new Runnable() {
@@ -44,12 +101,10 @@ public class ASyncUDPSrv {
             public void run() {
                 try {
                     selector = Selector.open();
-                    DatagramChannel channel = DatagramChannel.open();
-                    InetSocketAddress isa = new InetSocketAddress(Port);
-                    channel.socket().bind(isa);
-                    channel.configureBlocking(false);
-                    SelectionKey clientKey = channel.register(selector, SelectionKey.OP_READ);
-                    clientKey.attach(new Con());
+                    listen(Port);
+                    for (int extra : extraPorts) {
+                        listen(extra);
+                    }
                     while (!exec.isShutdown()) {
                         try {
                             selector.select();
@@ -88,26 +143,49 @@ public class ASyncUDPSrv {
         UDPServerT.start();
     }
 
+    /**
+     * Drains every datagram already queued on the socket (up to MAX_BATCH) and
+     * hands them as a single batch to the dispatcher.
+     */
     private void read(SelectionKey key) throws IOException {
         DatagramChannel chan = (DatagramChannel) key.channel();
         Con con = (Con) key.attachment();
-        con.sa = chan.receive(con.req);
-        con.req.flip();
-        byte[] bytestr = new byte[con.req.limit()];
-        con.req.get(bytestr);
-        con.req.clear();
-        produce(new String(bytestr, "UTF-8"));
+        List<String> batch = new ArrayList<String>();
+        while (batch.size() < MAX_BATCH) {
+            con.sa = chan.receive(con.req);
+            if (con.sa == null) {
+                break;
+            }
+            con.req.flip();
+            byte[] bytestr = new byte[con.req.limit()];
+            con.req.get(bytestr);
+            con.req.clear();
+            if (capture != null) {
+                capture.offerOwned(bytestr);
+            }
+            batch.add(new String(bytestr, "UTF-8"));
+        }
+        if (!batch.isEmpty()) {
+            produce(batch, con.port);
+        }
     }
 
-    private void produce(final String result) {
+    private void produce(final List<String> batch, final int port) {
         Runnable requestHandler;
         requestHandler = new Runnable() {
             @Override
             public void run() {
-                consumer.consumeUDP(Port,result);
+                for (String datagram : batch) {
+                    // Same framing as the MINA text line codec: one metric per line
+                    for (String line : datagram.split("\r?\n")) {
+                        if (line.length() > 0) {
+                            consumer.consumeUDP(port, line);
+                        }
+                    }
+                }
             }
         };
-        exec.execute(requestHandler);
+        exec.dispatch(requestHandler);
     }
 
     public void stop() {
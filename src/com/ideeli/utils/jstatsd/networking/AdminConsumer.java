@@ -0,0 +1,19 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.ideeli.utils.jstatsd.networking;
+
+import java.io.PrintWriter;
+
+/**
+ *
+ * @author marc
+ */
+public interface AdminConsumer {
+
+    /**
+     * Runs an admin command. The reply is streamed to out, line by line.
+     */
+    public void consumeAdmin(int port, String command, PrintWriter out);
+}
@@ -0,0 +1,242 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.ideeli.utils.jstatsd.networking;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Streams flush output to a slow sink (a socket, System.out) in fixed size
+ * chunks, written by another thread while the next ones are filled.
+ *
+ * At most IN_FLIGHT chunks exist per stream, recycled once written, so memory
+ * doesn't depend on how much is written, and when all of them wait for the
+ * sink the producer blocks until one is free.
+ *
+ * flush() only hands the current chunk over, close() waits until everything
+ * reached the sink and flushes it. The sink itself is never closed.
+ *
+ * @author marc
+ */
+public class ChunkedOutputStream extends OutputStream {
+
+    public static final int CHUNK = 64 * 1024;
+    public static final int IN_FLIGHT = 4;
+    static final ExecutorService writers = Executors.newCachedThreadPool(new ThreadFactory() {
+        final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "Flush writer " + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    static class Chunk {
+
+        final byte[] data;
+        int len = 0;
+
+        Chunk(int size) {
+            data = new byte[size];
+        }
+    }
+    // Markers on the write queue
+    static final Chunk FLUSH = new Chunk(0);
+    static final Chunk END = new Chunk(0);
+    final OutputStream sink;
+    final ArrayBlockingQueue<Chunk> free = new ArrayBlockingQueue<Chunk>(IN_FLIGHT);
+    final LinkedBlockingQueue<Chunk> full = new LinkedBlockingQueue<Chunk>();
+    final CountDownLatch done = new CountDownLatch(1);
+    int allocated = 0;
+    Chunk current;
+    boolean started = false;
+    boolean closed = false;
+    volatile IOException error;
+    // Time on the sink (writer thread) and waiting for it (producer)
+    long writeNanos = 0;
+    long stallNanos = 0;
+
+    public ChunkedOutputStream(OutputStream sink) {
+        this.sink = sink;
+    }
+
+    Chunk take() throws IOException {
+        Chunk c = free.poll();
+        if (c != null) {
+            return c;
+        }
+        if (allocated < IN_FLIGHT) {
+            allocated++;
+            return new Chunk(CHUNK);
+        }
+        long start = System.nanoTime();
+        try {
+            // Backpressure, the sink is behind
+            return free.take();
+        } catch (InterruptedException ex) {
+            throw new InterruptedIOException();
+        } finally {
+            stallNanos += System.nanoTime() - start;
+        }
+    }
+
+    void hand(Chunk c) throws IOException {
+        if (error != null) {
+            throw error;
+        }
+        full.add(c);
+        if (!started) {
+            started = true;
+            writers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    drain();
+                }
+            });
+        }
+    }
+
+    void drain() {
+        try {
+            while (true) {
+                Chunk c;
+                try {
+                    c = full.take();
+                } catch (InterruptedException ex) {
+                    error = new InterruptedIOException();
+                    return;
+                }
+                if (c == END) {
+                    return;
+                }
+                long start = System.nanoTime();
+                try {
+                    if (error == null) {
+                        if (c == FLUSH) {
+                            sink.flush();
+                        } else {
+                            sink.write(c.data, 0, c.len);
+                        }
+                    }
+                    writeNanos += System.nanoTime() - start;
+                } catch (IOException ex) {
+                    // Keep draining, so the producer doesn't block forever
+                    error = ex;
+                }
+                if (c != FLUSH) {
+                    c.len = 0;
+                    free.add(c);
+                }
+            }
+        } finally {
+            done.countDown();
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (current == null) {
+            current = take();
+        }
+        current.data[current.len++] = (byte) b;
+        if (current.len == CHUNK) {
+            hand(current);
+            current = null;
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (current == null) {
+                current = take();
+            }
+            int n = Math.min(len, CHUNK - current.len);
+            System.arraycopy(b, off, current.data, current.len, n);
+            current.len += n;
+            off += n;
+            len -= n;
+            if (current.len == CHUNK) {
+                hand(current);
+                current = null;
+            }
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (current != null && current.len > 0) {
+            hand(current);
+            current = null;
+        }
+        if (started) {
+            hand(FLUSH);
+        }
+    }
+
+    /**
+     * Waits until everything written reached the sink. The writer thread is
+     * stopped even if this fails.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        boolean interrupted = false;
+        try {
+            flush();
+            if (!started) {
+                long start = System.nanoTime();
+                sink.flush();
+                writeNanos += System.nanoTime() - start;
+            }
+        } finally {
+            if (started) {
+                // Even if flush() failed, or the writer waits on the queue
+                // forever
+                full.add(END);
+                try {
+                    done.await();
+                } catch (InterruptedException ex) {
+                    // Thrown below, unless flush() failed first
+                    Thread.currentThread().interrupt();
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            throw new InterruptedIOException();
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    /**
+     * Time spent writing to the sink, once closed.
+     */
+    public long getWriteNanos() {
+        return writeNanos;
+    }
+
+    /**
+     * Time write() and flush() were blocked because the sink was behind.
+     */
+    public long getStallNanos() {
+        return stallNanos;
+    }
+}
@@ -82,7 +82,7 @@ public class ConnectionPool {
 
     static final long DEFAULT_EXPIRATION_TIMEOUT = 15000;
     static final int DEFAULT_CAPACITY = 10;
-    private final HashSet connections = new HashSet();
+    private final HashSet<Connection> connections = new HashSet<Connection>();
     private final String hostName;
     private final int port;
     private final RMIClientSocketFactory socketFactory;
@@ -160,8 +160,8 @@ public class ConnectionPool {
 
     private Connection findConnection() {
         Connection result = null;
-        for (Iterator iter = connections.iterator(); iter.hasNext();) {
-            Connection conn = (Connection) iter.next();
+        for (Iterator<Connection> iter = connections.iterator(); iter.hasNext();) {
+            Connection conn = iter.next();
             byte connStatus = conn.acquire();
             if (connStatus == Connection.READY) {
                 result = conn;
@@ -210,6 +210,40 @@ public class ConnectionPool {
         return conn;
     }
 
+    /**
+     * Returns the maximum number of connections of this pool.
+     *
+     * @return the pool capacity
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Returns the number of open connections, idle or in use.
+     *
+     * @return the number of open connections
+     */
+    public synchronized int getOpenConnections() {
+        return connections.size();
+    }
+
+    /**
+     * Returns the number of connections currently handed out to clients.
+     *
+     * @return the number of connections in use
+     */
+    public synchronized int getUsedConnections() {
+        int used = 0;
+        for (Iterator<Connection> iter = connections.iterator(); iter.hasNext();) {
+            Connection conn = iter.next();
+            if (!conn.isClosed() && conn.isUsed()) {
+                used++;
+            }
+        }
+        return used;
+    }
+
     private void checkConnectPermission() {
         SecurityManager security = System.getSecurityManager();
         if (security != null) {
@@ -0,0 +1,106 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.ideeli.utils.jstatsd.networking;
+
+import com.jcraft.jzlib.JZlib;
+import com.jcraft.jzlib.ZStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Deflate (zlib) stream with explicit sync flush points. Data written is only
+ * guaranteed to reach the other end after syncFlush(), which ends the current
+ * deflate block on a byte boundary so the receiver can inflate everything
+ * written so far without closing the stream.
+ *
+ * flush() does NOT sync, so writers wrapping this stream can flush as they
+ * like without hurting the compression ratio.
+ *
+ * @author marc
+ */
+public class DeflateOutputStream extends FilterOutputStream {
+
+    static final byte[] EMPTY = new byte[0];
+    final ZStream z = new ZStream();
+    final byte[] buf = new byte[8192];
+    long rawBytes = 0;
+    long compressedBytes = 0;
+
+    public DeflateOutputStream(OutputStream out, int level) throws IOException {
+        super(out);
+        if (z.deflateInit(level) != JZlib.Z_OK) {
+            throw new IOException("deflateInit: " + z.msg);
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        deflate(b, off, len, JZlib.Z_NO_FLUSH);
+        rawBytes += len;
+    }
+
+    private void deflate(byte[] b, int off, int len, int mode) throws IOException {
+        z.next_in = b;
+        z.next_in_index = off;
+        z.avail_in = len;
+        do {
+            z.next_out = buf;
+            z.next_out_index = 0;
+            z.avail_out = buf.length;
+            int err = z.deflate(mode);
+            if (err != JZlib.Z_OK && err != JZlib.Z_BUF_ERROR && err != JZlib.Z_STREAM_END) {
+                throw new IOException("deflate: " + z.msg);
+            }
+            int n = buf.length - z.avail_out;
+            if (n > 0) {
+                out.write(buf, 0, n);
+                compressedBytes += n;
+            }
+        } while (z.avail_in > 0 || z.avail_out == 0);
+    }
+
+    /**
+     * Pushes everything written so far to the underlying stream.
+     */
+    public void syncFlush() throws IOException {
+        deflate(EMPTY, 0, 0, JZlib.Z_SYNC_FLUSH);
+        out.flush();
+    }
+
+    @Override
+    public void flush() throws IOException {
+    }
+
+    /**
+     * Bytes written to this stream.
+     */
+    public long getRawBytes() {
+        return rawBytes;
+    }
+
+    /**
+     * Bytes written to the underlying stream.
+     */
+    public long getCompressedBytes() {
+        return compressedBytes;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            deflate(EMPTY, 0, 0, JZlib.Z_FINISH);
+            out.flush();
+        } finally {
+            z.deflateEnd();
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.ideeli.utils.jstatsd.networking;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.mina.core.service.IoAcceptor;
+import org.apache.mina.core.service.IoHandlerAdapter;
+import org.apache.mina.core.session.IoSession;
+import org.apache.mina.filter.codec.ProtocolCodecFilter;
+import org.apache.mina.filter.codec.textline.TextLineCodecFactory;
+import org.apache.mina.filter.executor.ExecutorFilter;
+import org.apache.mina.filter.executor.OrderedThreadPoolExecutor;
+import org.apache.mina.transport.socket.nio.NioSocketAcceptor;
+
+/**
+ * Line based admin/query port. Each line received is a command, and the reply
+ * ends with a line containing "END". "quit" closes the session.
+ *
+ * Commands run on a small pool, away from the I/O processors, one at a time
+ * and in order for each session. A slow client only holds its own thread, and
+ * a stalled one is dropped after SessionWriter's write timeout.
+ *
+ * @author marc
+ */
+public class NioAdminServer extends IoHandlerAdapter {
+
+    // Sessions running a command at the same time
+    static final int THREADS = 4;
+    AdminConsumer consumer;
+    int port;
+    IoAcceptor acceptor;
+    OrderedThreadPoolExecutor executor;
+
+    public NioAdminServer(int port, AdminConsumer consumer) {
+        this.consumer = consumer;
+        this.port = port;
+    }
+
+    public void init() throws IOException {
+        acceptor = new NioSocketAcceptor();
+
+        acceptor.getFilterChain().addLast("codec", new ProtocolCodecFilter(new TextLineCodecFactory(Charset.forName("UTF-8"))));
+        executor = new OrderedThreadPoolExecutor(1, THREADS, 60, TimeUnit.SECONDS, new ThreadFactory() {
+            final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "Admin " + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        acceptor.getFilterChain().addLast("executor", new ExecutorFilter(executor));
+
+        acceptor.setHandler(this);
+
+        acceptor.getSessionConfig().setReadBufferSize(2048);
+        System.out.println("Binding admin: ");
+        // Local only, there's no authentication at all.
+        acceptor.bind(new InetSocketAddress("127.0.0.1", port));
+        System.out.println("Bound admin");
+    }
+
+    /**
+     * Stops listening, and commands in progress.
+     */
+    public void close() {
+        if (acceptor != null) {
+            acceptor.unbind();
+            acceptor.dispose();
+        }
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    @Override
+    public void exceptionCaught(IoSession session, Throwable cause) throws Exception {
+        cause.printStackTrace();
+        session.close(true);
+    }
+
+    @Override
+    public void messageReceived(IoSession session, Object message) throws Exception {
+        String command = message.toString().trim();
+        if (command.length() == 0) {
+            return;
+        }
+        if (command.equals("quit")) {
+            session.close(false);
+            return;
+        }
+        PrintWriter out = new PrintWriter(new SessionWriter(session));
+        consumer.consumeAdmin(port, command, out);
+        out.println("END");
+        out.close();
+    }
+}
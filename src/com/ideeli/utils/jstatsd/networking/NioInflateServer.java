@@ -0,0 +1,143 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.ideeli.utils.jstatsd.networking;
+
+import com.ideeli.utils.jstatsd.Jstatsd;
+import com.jcraft.jzlib.JZlib;
+import com.jcraft.jzlib.ZStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.service.IoHandlerAdapter;
+import org.apache.mina.core.session.IoSession;
+import org.apache.mina.transport.socket.nio.NioSocketAcceptor;
+
+/**
+ * Receiving end of a compressed upstream link. Inflates the zlib stream of
+ * each connection and hands the complete lines to the consumer, a whole
+ * chunk at a time.
+ *
+ * @author marc
+ */
+public class NioInflateServer extends IoHandlerAdapter {
+
+    static final String INFLATER = "inflater";
+    TCPConsumer consumer;
+    int port;
+    NioSocketAcceptor acceptor;
+
+    public NioInflateServer(int port, TCPConsumer consumer) {
+        this.consumer = consumer;
+        this.port = port;
+    }
+
+    /**
+     * Per connection inflate state.
+     */
+    static class Inflater {
+
+        final ZStream z = new ZStream();
+        final byte[] buf = new byte[8192];
+        // Inflated bytes not ended by a new line yet
+        final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+
+        Inflater() throws IOException {
+            if (z.inflateInit() != JZlib.Z_OK) {
+                throw new IOException("inflateInit: " + z.msg);
+            }
+        }
+
+        /**
+         * @return the complete lines inflated from in, or null if none.
+         */
+        String inflate(byte[] in) throws IOException {
+            z.next_in = in;
+            z.next_in_index = 0;
+            z.avail_in = in.length;
+            do {
+                z.next_out = buf;
+                z.next_out_index = 0;
+                z.avail_out = buf.length;
+                int err = z.inflate(JZlib.Z_NO_FLUSH);
+                if (err != JZlib.Z_OK && err != JZlib.Z_BUF_ERROR && err != JZlib.Z_STREAM_END) {
+                    throw new IOException("inflate: " + z.msg);
+                }
+                pending.write(buf, 0, buf.length - z.avail_out);
+            } while (z.avail_in > 0 || z.avail_out == 0);
+            byte[] inflated = pending.toByteArray();
+            int end = inflated.length;
+            while (end > 0 && inflated[end - 1] != '\n') {
+                end--;
+            }
+            if (end == 0) {
+                return null;
+            }
+            pending.reset();
+            pending.write(inflated, end, inflated.length - end);
+            return new String(inflated, 0, end, "UTF-8");
+        }
+    }
+
+    public void init() throws IOException {
+        acceptor = new NioSocketAcceptor();
+        // Edges reconnect here all the time, don't get stuck on TIME_WAIT
+        acceptor.setReuseAddress(true);
+
+        acceptor.setHandler(this);
+
+        acceptor.getSessionConfig().setReadBufferSize(8192);
+        System.out.println("Binding compressed proxy: ");
+        acceptor.bind(new InetSocketAddress(port));
+        System.out.println("Bound compressed proxy");
+    }
+
+    /**
+     * Stops listening.
+     */
+    public void close() {
+        if (acceptor != null) {
+            acceptor.unbind();
+            acceptor.dispose();
+        }
+    }
+
+    @Override
+    public void sessionOpened(IoSession session) throws Exception {
+        session.setAttribute(INFLATER, new Inflater());
+        Logger.getLogger(Jstatsd.class.getName()).log(Level.INFO, "Compressed upstream from {0}", session.getRemoteAddress());
+    }
+
+    @Override
+    public void sessionClosed(IoSession session) throws Exception {
+        Inflater inflater = (Inflater) session.getAttribute(INFLATER);
+        if (inflater != null) {
+            long in = inflater.z.total_in;
+            long out = inflater.z.total_out;
+            Logger.getLogger(Jstatsd.class.getName()).log(Level.INFO, "Compressed upstream from {0} closed. {1} bytes inflated to {2}, ratio {3}",
+                    new Object[]{session.getRemoteAddress(), "" + in, "" + out, in == 0 ? 0 : (double) out / in});
+            inflater.z.inflateEnd();
+        }
+    }
+
+    @Override
+    public void exceptionCaught(IoSession session, Throwable cause) throws Exception {
+        Logger.getLogger(Jstatsd.class.getName()).log(Level.SEVERE, "Compressed upstream error, closing: {0}", cause.getMessage());
+        session.close(true);
+    }
+
+    @Override
+    public void messageReceived(IoSession session, Object message) throws Exception {
+        IoBuffer buffer = (IoBuffer) message;
+        byte[] in = new byte[buffer.remaining()];
+        buffer.get(in);
+        String lines = ((Inflater) session.getAttribute(INFLATER)).inflate(in);
+        if (lines != null) {
+            consumer.consumeTCP(port, lines);
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.ideeli.utils.jstatsd.networking;
+
+import com.ideeli.utils.jstatsd.BucketCodec;
+import com.ideeli.utils.jstatsd.Jstatsd;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.service.IoHandlerAdapter;
+import org.apache.mina.core.session.IoSession;
+import org.apache.mina.filter.codec.CumulativeProtocolDecoder;
+import org.apache.mina.filter.codec.ProtocolCodecFilter;
+import org.apache.mina.filter.codec.ProtocolDecoderOutput;
+import org.apache.mina.filter.codec.ProtocolEncoderAdapter;
+import org.apache.mina.filter.codec.ProtocolEncoderOutput;
+import org.apache.mina.transport.socket.nio.NioSocketAcceptor;
+
+/**
+ * Receives length prefixed frames (4 bytes, big endian, then the frame) from
+ * relaying jstatsd's. Each connection is a stream with its own decoding state.
+ *
+ * @author marc
+ */
+public class NioRelayServer extends IoHandlerAdapter {
+
+    static final int MAX_FRAME = 256 * 1024 * 1024;
+    static final String CODEC = "codec";
+    RelayConsumer consumer;
+    int port;
+    NioSocketAcceptor acceptor;
+
+    public NioRelayServer(int port, RelayConsumer consumer) {
+        this.consumer = consumer;
+        this.port = port;
+    }
+
+    static class FrameDecoder extends CumulativeProtocolDecoder {
+
+        @Override
+        protected boolean doDecode(IoSession session, IoBuffer in, ProtocolDecoderOutput out) throws Exception {
+            if (!in.prefixedDataAvailable(4, MAX_FRAME)) {
+                return false;
+            }
+            byte[] frame = new byte[in.getInt()];
+            in.get(frame);
+            out.write(frame);
+            return true;
+        }
+    }
+
+    static class NoEncoder extends ProtocolEncoderAdapter {
+
+        @Override
+        public void encode(IoSession session, Object message, ProtocolEncoderOutput out) throws Exception {
+            throw new IOException("Relay port is receive only");
+        }
+    }
+
+    public void init() throws IOException {
+        acceptor = new NioSocketAcceptor();
+        acceptor.setReuseAddress(true);
+
+        acceptor.getFilterChain().addLast("codec", new ProtocolCodecFilter(new NoEncoder(), new FrameDecoder()));
+
+        acceptor.setHandler(this);
+
+        acceptor.getSessionConfig().setReadBufferSize(65536);
+        System.out.println("Binding relay: ");
+        acceptor.bind(new InetSocketAddress(port));
+        System.out.println("Bound relay");
+    }
+
+    /**
+     * Stops listening.
+     */
+    public void close() {
+        if (acceptor != null) {
+            acceptor.unbind();
+            acceptor.dispose();
+        }
+    }
+
+    @Override
+    public void sessionOpened(IoSession session) throws Exception {
+        session.setAttribute(CODEC, new BucketCodec());
+        Logger.getLogger(Jstatsd.class.getName()).log(Level.INFO, "Relay connection from {0}", session.getRemoteAddress());
+    }
+
+    @Override
+    public void exceptionCaught(IoSession session, Throwable cause) throws Exception {
+        Logger.getLogger(Jstatsd.class.getName()).log(Level.SEVERE, "Relay error, closing: {0}", cause.getMessage());
+        session.close(true);
+    }
+
+    @Override
+    public void messageReceived(IoSession session, Object message) throws Exception {
+        consumer.consumeRelay(port, (BucketCodec) session.getAttribute(CODEC), (byte[]) message);
+    }
+}
@@ -25,6 +25,7 @@ public class NioTCPServer extends IoHandlerAdapter {
 
     TCPConsumer consumer;
     int port;
+    IoAcceptor acceptor;
 
     public NioTCPServer(int port,TCPConsumer consumer) {
         this.consumer=consumer;
@@ -32,7 +33,7 @@ public class NioTCPServer extends IoHandlerAdapter {
     }
 
     public void init() throws IOException {
-        IoAcceptor acceptor = new NioSocketAcceptor();
+        acceptor = new NioSocketAcceptor();
 
         acceptor.getFilterChain().addLast( "codec", new ProtocolCodecFilter( new TextLineCodecFactory( Charset.forName( "UTF-8" ))));
 
@@ -45,6 +46,16 @@ public class NioTCPServer extends IoHandlerAdapter {
         System.out.println("Bound ");
     }
  
+    /**
+     * Stops listening.
+     */
+    public void close() {
+        if (acceptor != null) {
+            acceptor.unbind();
+            acceptor.dispose();
+        }
+    }
+
     @Override
     public void exceptionCaught( IoSession session, Throwable cause ) throws Exception
     {
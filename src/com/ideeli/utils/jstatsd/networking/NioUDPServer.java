@@ -6,9 +6,12 @@ package com.ideeli.utils.jstatsd.networking;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 import org.apache.mina.core.service.IoAcceptor;
 import org.apache.mina.core.service.IoHandlerAdapter;
 import org.apache.mina.core.session.IdleStatus;
@@ -29,26 +32,75 @@ public class NioUDPServer extends IoHandlerAdapter {
 
     UDPConsumer consumer;
     int port;
+    // More ports on the same acceptor, and I/O threads
+    List<Integer> extraPorts = new ArrayList<Integer>();
+    IoAcceptor acceptor;
+    // Bigger datagrams are truncated
+    int maxDatagram = 2048;
+    // SO_RCVBUF, 0 leaves the OS default
+    int receiveBuffer = 0;
+    // Null unless capturing. MINA hands over lines, so each one is captured
+    // as a datagram of its own
+    PacketCapture capture;
 
     public NioUDPServer(int port,UDPConsumer consumer) {
         this.consumer=consumer;
         this.port=port;
     }
 
+    public void setMaxDatagram(int maxDatagram) {
+        this.maxDatagram = maxDatagram;
+    }
+
+    public void setReceiveBuffer(int receiveBuffer) {
+        this.receiveBuffer = receiveBuffer;
+    }
+
+    public void setCapture(PacketCapture capture) {
+        this.capture = capture;
+    }
+
+    /**
+     * Listens on another port too, consumers get it along with the data.
+     */
+    public void addPort(int port) {
+        extraPorts.add(port);
+    }
+
     public void init() throws IOException {
-        IoAcceptor acceptor = new NioDatagramAcceptor();
+        NioDatagramAcceptor datagramAcceptor = new NioDatagramAcceptor();
+        if (receiveBuffer > 0) {
+            // Applied to the socket when bound
+            datagramAcceptor.getSessionConfig().setReceiveBufferSize(receiveBuffer);
+        }
+        acceptor = datagramAcceptor;
 
         acceptor.getFilterChain().addLast( "codec", new ProtocolCodecFilter( new TextLineCodecFactory( Charset.forName( "UTF-8" ))));
 
         acceptor.setHandler( this );
 
-        acceptor.getSessionConfig().setReadBufferSize( 2048 );
+        acceptor.getSessionConfig().setReadBufferSize( maxDatagram );
         acceptor.getSessionConfig().setIdleTime( IdleStatus.BOTH_IDLE, 10 );
         System.out.println("Binding UDP: ");
-        acceptor.bind( new InetSocketAddress(port) );
+        List<SocketAddress> addresses = new ArrayList<SocketAddress>();
+        addresses.add(new InetSocketAddress(port));
+        for (int extra : extraPorts) {
+            addresses.add(new InetSocketAddress(extra));
+        }
+        acceptor.bind( addresses );
         System.out.println("Bound UDP");
     }
  
+    /**
+     * Stops listening.
+     */
+    public void close() {
+        if (acceptor != null) {
+            acceptor.unbind();
+            acceptor.dispose();
+        }
+    }
+
     @Override
     public void exceptionCaught( IoSession session, Throwable cause ) throws Exception
     {
@@ -59,7 +111,14 @@ public class NioUDPServer extends IoHandlerAdapter {
     public void messageReceived( IoSession session, Object message ) throws Exception
     {
         String str = message.toString();
-        consumer.consumeUDP(port, str);
+        if (capture != null) {
+            capture.offerOwned(str.getBytes("UTF-8"));
+        }
+        int to = port;
+        if (!extraPorts.isEmpty()) {
+            to = ((InetSocketAddress) session.getLocalAddress()).getPort();
+        }
+        consumer.consumeUDP(to, str);
     }
     
     @Override
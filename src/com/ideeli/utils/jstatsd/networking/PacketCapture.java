@@ -0,0 +1,260 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.ideeli.utils.jstatsd.networking;
+
+import com.ideeli.utils.jstatsd.Jstatsd;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Appends every datagram received to a file, with its arrival time, so real
+ * traffic can be replayed later.
+ *
+ * Listeners only copy the datagram onto a bounded queue, a writer thread
+ * does the I/O. If the disk can't keep up datagrams are left out of the
+ * capture (and counted), never delayed.
+ *
+ * The file is a sequence of records, each starting with its type:
+ * <ul>
+ * <li>'S' session: wall clock millis (8 bytes) when capturing started. Each
+ * run appends a new one.</li>
+ * <li>'D' datagram: varint micros since the previous record, varint length
+ * and the bytes.</li>
+ * </ul>
+ *
+ * @author marc
+ */
+public class PacketCapture {
+
+    static final int SESSION = 'S';
+    static final int DATAGRAM = 'D';
+    public static final int QUEUE = 65536;
+    // Longest stop() waits for the writer
+    static final long STOP_MILLIS = 10000;
+
+    static class Packet {
+
+        final long nanos;
+        final byte[] data;
+
+        Packet(long nanos, byte[] data) {
+            this.nanos = nanos;
+            this.data = data;
+        }
+    }
+    // Wakes up the writer to finish
+    static final Packet END = new Packet(0, null);
+    final String file;
+    final ArrayBlockingQueue<Packet> ring;
+    final AtomicLong captured = new AtomicLong();
+    final AtomicLong dropped = new AtomicLong();
+    // Set when the writer gave up, nothing empties the ring any more
+    volatile boolean failed = false;
+    DataOutputStream out;
+    Thread writer;
+    long lastNanos;
+
+    public PacketCapture(String file, int queue) {
+        this.file = file;
+        this.ring = new ArrayBlockingQueue<Packet>(queue);
+    }
+
+    public void start() throws IOException {
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true), 65536));
+        lastNanos = System.nanoTime();
+        out.writeByte(SESSION);
+        out.writeLong(System.currentTimeMillis());
+        writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                write();
+            }
+        }, "Packet capture");
+        writer.setDaemon(true);
+        writer.start();
+        Logger.getLogger(Jstatsd.class.getName()).log(Level.INFO, "Capturing UDP to {0}", file);
+    }
+
+    /**
+     * Called by the listeners, data isn't kept.
+     */
+    public void offer(byte[] data, int off, int len) {
+        byte[] copy = new byte[len];
+        System.arraycopy(data, off, copy, 0, len);
+        offerOwned(copy);
+    }
+
+    /**
+     * Same, data is kept and mustn't change.
+     */
+    public void offerOwned(byte[] data) {
+        if (!failed && ring.offer(new Packet(System.nanoTime(), data))) {
+            captured.incrementAndGet();
+        } else {
+            dropped.incrementAndGet();
+        }
+    }
+
+    void write() {
+        List<Packet> batch = new ArrayList<Packet>();
+        try {
+            while (true) {
+                Packet p = ring.poll(1, TimeUnit.SECONDS);
+                if (p == null) {
+                    out.flush();
+                    continue;
+                }
+                batch.add(p);
+                ring.drainTo(batch);
+                for (Packet packet : batch) {
+                    if (packet == END) {
+                        out.close();
+                        return;
+                    }
+                    // Listeners race to the queue, order may be off by a bit
+                    long micros = Math.max(0, (packet.nanos - lastNanos) / 1000);
+                    // Rounded down, the remainder goes to the next one
+                    lastNanos += micros * 1000;
+                    out.writeByte(DATAGRAM);
+                    writeVar(out, micros);
+                    writeVar(out, packet.data.length);
+                    out.write(packet.data);
+                }
+                batch.clear();
+            }
+        } catch (InterruptedException ex) {
+        } catch (IOException ex) {
+            Logger.getLogger(Jstatsd.class.getName()).log(Level.SEVERE, "Capture stopped, can't write to " + file, ex);
+        }
+        // Nobody will write what's left
+        failed = true;
+        ring.clear();
+        try {
+            out.close();
+        } catch (IOException ex) {
+        }
+    }
+
+    /**
+     * Writes what's queued and closes the file. Gives up after STOP_MILLIS if
+     * the writer can't keep up, and returns at once if it already died.
+     */
+    public void stop() {
+        if (writer == null) {
+            return;
+        }
+        long deadline = System.currentTimeMillis() + STOP_MILLIS;
+        try {
+            // Listeners may still be filling the ring
+            while (writer.isAlive() && !ring.offer(END, 100, TimeUnit.MILLISECONDS)) {
+                if (System.currentTimeMillis() > deadline) {
+                    break;
+                }
+            }
+            writer.join(Math.max(1, deadline - System.currentTimeMillis()));
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        if (writer.isAlive()) {
+            Logger.getLogger(Jstatsd.class.getName()).log(Level.WARNING, "Capture to {0} didn''t stop, left unfinished", file);
+        }
+        writer = null;
+    }
+
+    public long getCaptured() {
+        return captured.get();
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    static void writeVar(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    static long readVar(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    /**
+     * Reads a capture back, one datagram at a time.
+     */
+    public static class Reader {
+
+        final DataInputStream in;
+        long micros = -1;
+        byte[] data;
+
+        public Reader(InputStream in) {
+            this.in = new DataInputStream(in);
+        }
+
+        /**
+         * @return false at the end of the capture. A datagram cut short by a
+         * crash ends it too.
+         */
+        public boolean next() throws IOException {
+            while (true) {
+                int type;
+                try {
+                    type = in.readUnsignedByte();
+                    if (type == SESSION) {
+                        micros = in.readLong() * 1000;
+                        continue;
+                    }
+                    if (type != DATAGRAM || micros < 0) {
+                        throw new IOException("Not a capture file");
+                    }
+                    micros += readVar(in);
+                    data = new byte[(int) readVar(in)];
+                    in.readFully(data);
+                    return true;
+                } catch (EOFException ex) {
+                    return false;
+                }
+            }
+        }
+
+        /**
+         * Arrival time, wall clock micros.
+         */
+        public long getMicros() {
+            return micros;
+        }
+
+        public byte[] getData() {
+            return data;
+        }
+
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
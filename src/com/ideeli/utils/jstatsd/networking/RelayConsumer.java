@@ -0,0 +1,19 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.ideeli.utils.jstatsd.networking;
+
+import com.ideeli.utils.jstatsd.BucketCodec;
+
+/**
+ *
+ * @author marc
+ */
+public interface RelayConsumer {
+
+    /**
+     * @param codec decoding state of the connection the frame came from.
+     */
+    public void consumeRelay(int port, BucketCodec codec, byte[] frame);
+}
@@ -0,0 +1,80 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.ideeli.utils.jstatsd.networking;
+
+import java.io.IOException;
+import java.io.Writer;
+import org.apache.mina.core.future.WriteFuture;
+import org.apache.mina.core.session.IoSession;
+
+/**
+ * Writer over a text line MINA session. Every complete line becomes one
+ * message, and every BATCH lines it waits for the last one to be written, so
+ * a big reply never piles up on the session write queue. A client that reads
+ * nothing for WRITE_TIMEOUT is disconnected.
+ *
+ * Must not be used from an I/O processor thread.
+ *
+ * @author marc
+ */
+public class SessionWriter extends Writer {
+
+    static final int BATCH = 256;
+    static final long WRITE_TIMEOUT = 10000;
+    final IoSession session;
+    final StringBuilder line = new StringBuilder();
+    WriteFuture last;
+    int pending = 0;
+
+    public SessionWriter(IoSession session) {
+        this.session = session;
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        for (int i = off; i < off + len; i++) {
+            char c = cbuf[i];
+            if (c == '\n') {
+                writeLine();
+            } else if (c != '\r') {
+                line.append(c);
+            }
+        }
+    }
+
+    private void writeLine() throws IOException {
+        if (!session.isConnected()) {
+            throw new IOException("Admin session closed");
+        }
+        last = session.write(line.toString());
+        line.setLength(0);
+        if (++pending >= BATCH) {
+            flush();
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (last != null) {
+            if (!last.awaitUninterruptibly(WRITE_TIMEOUT)) {
+                session.close(true);
+                throw new IOException("Admin client stalled, disconnected");
+            }
+            if (!last.isWritten()) {
+                throw new IOException("Admin session closed");
+            }
+            last = null;
+        }
+        pending = 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (line.length() > 0) {
+            writeLine();
+        }
+        flush();
+    }
+}
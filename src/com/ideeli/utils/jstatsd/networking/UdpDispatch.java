@@ -0,0 +1,174 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.ideeli.utils.jstatsd.networking;
+
+import com.ideeli.utils.jstatsd.Jstatsd;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Dispatch model for the datagrams read by {@link ASyncUDPSrv}.
+ *
+ * <ul>
+ * <li>cached: one pooled platform thread per outstanding batch, unbounded (the
+ * original behaviour).</li>
+ * <li>bounded: fixed number of platform threads and a bounded queue. Batches
+ * that don't fit are shed and counted.</li>
+ * <li>virtual: one virtual thread per batch, limited to a number of batches in
+ * flight. Falls back to bounded on JVMs without virtual threads.</li>
+ * </ul>
+ *
+ * @author marc
+ */
+public class UdpDispatch {
+
+    public enum Mode { cached, bounded, virtual };
+    Mode mode;
+    ExecutorService exec;
+    Semaphore inFlight;
+    final AtomicLong dispatched = new AtomicLong();
+    final AtomicLong dropped = new AtomicLong();
+
+    public UdpDispatch(Mode mode, int threads, int queue) {
+        if (threads <= 0 || queue <= 0) {
+            throw new IllegalArgumentException();
+        }
+        this.mode = mode;
+        switch (mode) {
+            case virtual:
+                exec = newVirtualExecutor();
+                if (exec != null) {
+                    inFlight = new Semaphore(queue);
+                    break;
+                }
+                Logger.getLogger(Jstatsd.class.getName()).log(Level.WARNING, "Virtual threads not supported by this JVM, using bounded dispatch");
+                this.mode = Mode.bounded;
+                exec = newBoundedExecutor(threads, queue);
+                break;
+            case bounded:
+                exec = newBoundedExecutor(threads, queue);
+                break;
+            case cached:
+            default:
+                exec = Executors.newCachedThreadPool(new NamedThreadFactory());
+        }
+    }
+
+    /**
+     * Fixed threads on a bounded queue, datagrams past it are dropped and
+     * counted.
+     */
+    private ExecutorService newBoundedExecutor(int threads, int queue) {
+        return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(queue), new NamedThreadFactory(), new RejectedExecutionHandler() {
+            @Override
+            public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+                dropped.incrementAndGet();
+            }
+        });
+    }
+
+    /**
+     * Parses a mode name as found on jstatsd.UdpDispatch.
+     *
+     * @return the mode, or null if the name is unknown.
+     */
+    public static Mode parseMode(String name) {
+        try {
+            return Mode.valueOf(name.trim().toLowerCase());
+        } catch (IllegalArgumentException ex) {
+            return null;
+        }
+    }
+
+    private static ExecutorService newVirtualExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (Exception ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Runs the task using the configured model. Never blocks, if there's no
+     * room for it the task is dropped and counted.
+     */
+    public void dispatch(final Runnable task) {
+        dispatched.incrementAndGet();
+        if (inFlight != null) {
+            if (!inFlight.tryAcquire()) {
+                dropped.incrementAndGet();
+                return;
+            }
+            exec.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        task.run();
+                    } finally {
+                        inFlight.release();
+                    }
+                }
+            });
+        } else {
+            exec.execute(task);
+        }
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * Batches offered to the dispatcher, dropped ones included.
+     */
+    public long getDispatched() {
+        return dispatched.get();
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Batches waiting for a thread. Only meaningful on the bounded model.
+     */
+    public int getQueueDepth() {
+        if (exec instanceof ThreadPoolExecutor) {
+            return ((ThreadPoolExecutor) exec).getQueue().size();
+        }
+        return 0;
+    }
+
+    public boolean isShutdown() {
+        return exec.isShutdown();
+    }
+
+    public void shutdown() {
+        exec.shutdown();
+    }
+
+    static class NamedThreadFactory implements ThreadFactory {
+
+        final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "UDP dispatch " + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
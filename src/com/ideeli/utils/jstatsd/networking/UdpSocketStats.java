@@ -0,0 +1,104 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.ideeli.utils.jstatsd.networking;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+
+/**
+ * Kernel side of UDP ports, from /proc/net/udp and /proc/net/udp6: bytes
+ * waiting on the receive queue and datagrams dropped because it was full.
+ * Those never reach jstatsd, so this is the only way to see them.
+ *
+ * Every socket bound to the ports is added up. Only on Linux, read() returns
+ * false anywhere else.
+ *
+ * @author marc
+ */
+public class UdpSocketStats {
+
+    static final String[] TABLES = {"/proc/net/udp", "/proc/net/udp6"};
+    final String[] ports;
+    long rxQueue = 0;
+    long drops = 0;
+
+    public UdpSocketStats(int... ports) {
+        this.ports = new String[ports.length];
+        for (int i = 0; i < ports.length; i++) {
+            // Local address is "ADDR:PORT", in hex
+            this.ports[i] = ":" + String.format("%04X", ports[i]);
+        }
+    }
+
+    boolean ours(String local) {
+        for (String port : ports) {
+            if (local.endsWith(port)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Reads the current values.
+     *
+     * @return false if no table could be read.
+     */
+    public boolean read() {
+        long queue = 0;
+        long dropped = 0;
+        boolean found = false;
+        for (String table : TABLES) {
+            BufferedReader in;
+            try {
+                in = new BufferedReader(new FileReader(table));
+            } catch (IOException ex) {
+                continue;
+            }
+            try {
+                // Header
+                String line = in.readLine();
+                while ((line = in.readLine()) != null) {
+                    String[] f = line.trim().split("\\s+");
+                    // sl local rem st tx:rx tr:tm retrnsmt uid timeout inode ref pointer drops
+                    if (f.length < 13 || !ours(f[1])) {
+                        continue;
+                    }
+                    String rx = f[4].substring(f[4].indexOf(':') + 1);
+                    queue += Long.parseLong(rx, 16);
+                    dropped += Long.parseLong(f[f.length - 1]);
+                }
+                found = true;
+            } catch (IOException ex) {
+            } catch (NumberFormatException ex) {
+            } finally {
+                try {
+                    in.close();
+                } catch (IOException ex) {
+                }
+            }
+        }
+        if (found) {
+            rxQueue = queue;
+            drops = dropped;
+        }
+        return found;
+    }
+
+    /**
+     * Bytes waiting to be read, on the last read().
+     */
+    public long getRxQueue() {
+        return rxQueue;
+    }
+
+    /**
+     * Datagrams dropped since the sockets were opened, on the last read().
+     */
+    public long getDrops() {
+        return drops;
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.ideeli.utils.jstatsd;
+
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Encode/decode round trip of BucketCodec, on a stream of frames so names
+ * sent on an earlier frame are only referenced by id later.
+ *
+ * Plain main, no test framework on the classpath: exits 1 on the first
+ * mismatch.
+ *
+ * @author marc
+ */
+public class BucketCodecTest {
+
+    static void check(boolean ok, String what) {
+        if (!ok) {
+            System.err.println("FAIL: " + what);
+            System.exit(1);
+        }
+    }
+
+    static Bucket sample(int frame) {
+        Bucket b = new Bucket();
+        b.add("app.hits", 5 + frame, Bucket.Type.c);
+        b.add("app.hits", -2, Bucket.Type.c);
+        b.add("app.errors;env=prod", 1, Bucket.Type.c);
+        b.add("app.queue", 42 * frame, Bucket.Type.g);
+        b.addGaugeDelta("app.workers", -3);
+        for (long v : new long[]{120, -7, 0, 120, 3000000000L, 15}) {
+            b.add("app.latency", v + frame, Bucket.Type.ms);
+        }
+        b.add("app.frame" + frame, 1, Bucket.Type.ms);
+        return b;
+    }
+
+    static long[] sorted(LinkedList<Long> lst) {
+        long[] a = new long[lst.size()];
+        int i = 0;
+        for (Long v : lst) {
+            a[i++] = v;
+        }
+        Arrays.sort(a);
+        return a;
+    }
+
+    static void compare(Bucket expected, Bucket actual) {
+        check(expected.getKeyCount() == actual.getKeyCount(), "key count " + expected.getKeyCount() + " vs " + actual.getKeyCount());
+        for (Map.Entry<String, AtomicLong> e : expected.getCountHashes().entrySet()) {
+            AtomicLong got = actual.getCountHashes().get(e.getKey());
+            check(got != null && got.get() == e.getValue().get(), "counter " + e.getKey());
+        }
+        for (Map.Entry<String, Bucket.Gauge> e : expected.getGaugeHashes().entrySet()) {
+            Bucket.Gauge got = actual.getGaugeHashes().get(e.getKey());
+            check(got != null && got.get() == e.getValue().get() && got.isSet() == e.getValue().isSet(), "gauge " + e.getKey());
+        }
+        for (Map.Entry<String, LinkedList<Long>> e : expected.getTimeHashes().entrySet()) {
+            LinkedList<Long> got = actual.getTimeHashes().get(e.getKey());
+            check(got != null && Arrays.equals(sorted(e.getValue()), sorted(got)), "timer " + e.getKey());
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        BucketCodec encoder = new BucketCodec();
+        BucketCodec decoder = new BucketCodec();
+        long timestamp = 1700000000000L;
+        for (int frame = 0; frame < 3; frame++) {
+            Bucket in = sample(frame);
+            byte[] bytes = encoder.encode(in, timestamp + frame * 10000);
+            check(bytes[0] == BucketCodec.BUCKET, "frame type");
+            Bucket out = new Bucket();
+            check(decoder.decode(bytes, out) == timestamp + frame * 10000, "timestamp");
+            compare(sample(frame), out);
+        }
+        // Decoding merges into what's on the target
+        Bucket target = sample(0);
+        BucketCodec fresh = new BucketCodec();
+        fresh.decode(new BucketCodec().encode(sample(0), timestamp), target);
+        check(target.getCountHashes().get("app.hits").get() == 6, "merged counter");
+        check(target.getTimeHashes().get("app.latency").size() == 12, "merged timer");
+        // Reservoirs keep their exact stats past what they sampled
+        Bucket sampled = new Bucket();
+        sampled.setReservoirSize(10);
+        for (long v = 1; v <= 1000; v++) {
+            sampled.add("app.sampled", v, Bucket.Type.ms);
+        }
+        Bucket relayed = new Bucket();
+        relayed.setReservoirSize(10);
+        new BucketCodec().decode(new BucketCodec().encode(sampled, timestamp), relayed);
+        Reservoir res = relayed.getReservoirs().get("app.sampled");
+        check(res != null && res.getCount() == 1000 && res.getSum() == 500500, "reservoir count and sum");
+        check(res.getMin() == 1 && res.getMax() == 1000, "reservoir min and max");
+        check(res.getSumSquares() == sampled.getReservoirs().get("app.sampled").getSumSquares(), "reservoir sum of squares");
+        check(res.sorted().length == 10, "reservoir samples");
+        System.out.println("BucketCodecTest OK");
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.ideeli.utils.jstatsd;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * What goes in an OffHeapStore comes back the same: on direct and on memory
+ * mapped memory, through the table and arenas growing, across resets that
+ * reuse them, and from several threads.
+ *
+ * Plain main, no test framework on the classpath: exits 1 on the first
+ * mismatch.
+ *
+ * @author marc
+ */
+public class OffHeapStoreTest {
+
+    static void check(boolean ok, String what) {
+        if (!ok) {
+            System.err.println("FAIL: " + what);
+            System.exit(1);
+        }
+    }
+
+    static long[] sorted(LinkedList<Long> lst) {
+        long[] a = new long[lst.size()];
+        int i = 0;
+        for (Long v : lst) {
+            a[i++] = v;
+        }
+        Arrays.sort(a);
+        return a;
+    }
+
+    /**
+     * Adds keys past the initial size of the store, with names long, short
+     * and not ASCII, and checks what comes back.
+     */
+    static void roundTrip(OffHeapStore store, int keys, String what) {
+        Map<String, Long> counters = new HashMap<String, Long>();
+        Map<String, Long> gauges = new HashMap<String, Long>();
+        Map<String, long[]> timers = new HashMap<String, long[]>();
+        Random r = new Random(keys);
+        StringBuilder longName = new StringBuilder("app.");
+        while (longName.length() < 300) {
+            longName.append("segment.");
+        }
+        String[] names = {"", "\u00e9.\u00fc", "\u6307\u6807.\u5ef6\u8fdf", longName.toString()};
+        for (int i = 0; i < keys; i++) {
+            String name = names[i % names.length] + "key." + i;
+            long a = r.nextInt(1000) - 500;
+            long b = r.nextInt(1000) - 500;
+            store.add(name, a, Bucket.Type.c, null);
+            store.add(name, b, Bucket.Type.c, null);
+            counters.put(name, a + b);
+            // Set, then a relative update on top
+            store.addGauge(name, a, false, null);
+            store.addGauge(name, b, true, null);
+            gauges.put(name, a + b);
+            // Same name, a timer is a different key
+            long[] samples = new long[i % 70 + 1];
+            for (int j = 0; j < samples.length; j++) {
+                samples[j] = r.nextLong();
+                store.add(name, samples[j], Bucket.Type.ms, null);
+            }
+            Arrays.sort(samples);
+            timers.put(name, samples);
+        }
+        check(store.size() == 3 * keys, what + ": size " + store.size());
+        check(store.size(Bucket.Type.c) == keys && store.size(Bucket.Type.g) == keys && store.size(Bucket.Type.ms) == keys, what + ": size by type");
+        Map<String, AtomicLong> c = store.counters();
+        check(c.size() == keys, what + ": counter count");
+        for (Map.Entry<String, Long> e : counters.entrySet()) {
+            check(c.get(e.getKey()) != null && c.get(e.getKey()).get() == e.getValue(), what + ": counter " + e.getKey());
+        }
+        Map<String, Bucket.Gauge> g = store.gauges();
+        check(g.size() == keys, what + ": gauge count");
+        for (Map.Entry<String, Long> e : gauges.entrySet()) {
+            check(g.get(e.getKey()) != null && g.get(e.getKey()).get() == e.getValue(), what + ": gauge " + e.getKey());
+        }
+        Map<String, LinkedList<Long>> t = store.timers();
+        check(t.size() == keys, what + ": timer count");
+        for (Map.Entry<String, long[]> e : timers.entrySet()) {
+            check(t.get(e.getKey()) != null && Arrays.equals(e.getValue(), sorted(t.get(e.getKey()))), what + ": timer " + e.getKey());
+        }
+    }
+
+    static void run(File dir, String what) throws Exception {
+        // Sized for 10 keys: the table, names and chunks all have to grow
+        OffHeapStore store = new OffHeapStore(10, dir);
+        long initial = store.getCapacityBytes();
+        roundTrip(store, 5000, what);
+        long grown = store.getCapacityBytes();
+        check(grown > initial, what + ": grew");
+
+        // Reset forgets everything and the next interval reuses the memory
+        store.reset();
+        check(store.size() == 0 && store.counters().isEmpty() && store.timers().isEmpty(), what + ": empty after reset");
+        roundTrip(store, 5000, what + " after reset");
+        check(store.getCapacityBytes() == grown, what + ": memory reused");
+        store.reset();
+
+        // Admission is consulted on new keys only
+        KeyAdmission admission = new KeyAdmission(2, new HashMap<String, Integer>());
+        store.add("a", 1, Bucket.Type.c, admission);
+        store.addGauge("b", 2, false, admission);
+        store.add("c", 3, Bucket.Type.ms, admission);
+        store.add("a", 4, Bucket.Type.c, admission);
+        check(store.size() == 2 && store.counters().get("a").get() == 5, what + ": admission");
+    }
+
+    public static void main(String[] args) throws Exception {
+        run(null, "direct");
+        File dir = new File(System.getProperty("java.io.tmpdir"));
+        run(dir, "mapped");
+
+        // Threads adding to the same keys while the table grows
+        final OffHeapStore shared = new OffHeapStore(10, null);
+        final int threads = 8;
+        final int samples = 20000;
+        Thread[] ts = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int seed = t;
+            ts[t] = new Thread() {
+                @Override
+                public void run() {
+                    Random r = new Random(seed);
+                    for (int i = 0; i < samples; i++) {
+                        int k = r.nextInt(3000);
+                        shared.add("k" + k, 1, Bucket.Type.c, null);
+                        shared.add("k" + k, k, Bucket.Type.ms, null);
+                    }
+                }
+            };
+            ts[t].start();
+        }
+        for (Thread t : ts) {
+            t.join();
+        }
+        long total = 0;
+        for (AtomicLong v : shared.counters().values()) {
+            total += v.get();
+        }
+        check(total == (long) threads * samples, "concurrent counters " + total);
+        long count = 0;
+        for (Map.Entry<String, LinkedList<Long>> e : shared.timers().entrySet()) {
+            long want = Long.parseLong(e.getKey().substring(1));
+            for (Long v : e.getValue()) {
+                check(v == want, "concurrent sample of " + e.getKey());
+            }
+            check(e.getValue().size() == shared.counters().get(e.getKey()).get(), "concurrent count of " + e.getKey());
+            count += e.getValue().size();
+        }
+        check(count == (long) threads * samples, "concurrent samples " + count);
+        System.out.println("OffHeapStoreTest OK");
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.ideeli.utils.jstatsd;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Samples added to PackedTimers come back the same, sorted: over many
+ * chunks, across resets that reuse the slabs, and from several threads.
+ *
+ * Plain main, no test framework on the classpath: exits 1 on the first
+ * mismatch.
+ *
+ * @author marc
+ */
+public class PackedTimersTest {
+
+    static void check(boolean ok, String what) {
+        if (!ok) {
+            System.err.println("FAIL: " + what);
+            System.exit(1);
+        }
+    }
+
+    static long[] sorted(LinkedList<Long> lst) {
+        long[] a = new long[lst.size()];
+        int i = 0;
+        for (Long v : lst) {
+            a[i++] = v;
+        }
+        Arrays.sort(a);
+        return a;
+    }
+
+    /**
+     * Fills p with samples of a few keys, returns the samples of each, sorted.
+     */
+    static Map<String, long[]> fill(PackedTimers p, long seed) {
+        Random r = new Random(seed);
+        Map<String, long[]> added = new HashMap<String, long[]>();
+        long[] edges = {0, -1, 1, Long.MIN_VALUE, Long.MAX_VALUE, 127, 128, -64, -65, 3000000000L};
+        added.put("edges", edges);
+        // Thousands of samples take every chunk size
+        long[] many = new long[5000];
+        for (int i = 0; i < many.length; i++) {
+            many[i] = r.nextInt(1000);
+        }
+        added.put("many", many);
+        added.put("single", new long[]{42});
+        long[] wide = new long[300];
+        for (int i = 0; i < wide.length; i++) {
+            wide[i] = r.nextLong();
+        }
+        added.put("wide", wide);
+        for (Map.Entry<String, long[]> e : added.entrySet()) {
+            for (long v : e.getValue()) {
+                p.add(e.getKey(), v, null);
+            }
+        }
+        for (long[] a : added.values()) {
+            Arrays.sort(a);
+        }
+        return added;
+    }
+
+    static void compare(Map<String, long[]> expected, PackedTimers p, String what) {
+        Map<String, LinkedList<Long>> copy = p.copy();
+        check(copy.size() == expected.size(), what + ": key count " + copy.size());
+        for (Map.Entry<String, long[]> e : expected.entrySet()) {
+            LinkedList<Long> got = copy.get(e.getKey());
+            check(got != null && Arrays.equals(e.getValue(), sorted(got)), what + ": samples of " + e.getKey());
+            check(p.getChains().get(e.getKey()).getCount() == e.getValue().length, what + ": count of " + e.getKey());
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        PackedTimers p = new PackedTimers();
+        compare(fill(p, 1), p, "round trip");
+        check(p.getChunkBytes() > 0 && p.getDropped() == 0, "chunk bytes");
+
+        // Reset forgets everything and the next interval reuses the slabs
+        long slabBytes = p.getSlabBytes();
+        p.reset();
+        check(p.size() == 0 && p.getChunkBytes() == 0 && p.copy().isEmpty(), "empty after reset");
+        for (int i = 0; i < 3; i++) {
+            compare(fill(p, 2 + i), p, "after reset " + i);
+            p.reset();
+        }
+        check(p.getSlabBytes() == slabBytes, "slabs reused, " + p.getSlabBytes() + " vs " + slabBytes);
+
+        // Admission is consulted on new keys only
+        KeyAdmission admission = new KeyAdmission(2, new HashMap<String, Integer>());
+        p.add("a", 1, admission);
+        p.add("b", 2, admission);
+        p.add("c", 3, admission);
+        p.add("a", 4, admission);
+        check(p.size() == 2 && p.getChains().get("a").getCount() == 2, "admission");
+        p.reset();
+
+        // Threads appending to the same keys, each sample is the key's number
+        final PackedTimers shared = new PackedTimers();
+        final int threads = 8;
+        final int samples = 20000;
+        Thread[] ts = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int seed = t;
+            ts[t] = new Thread() {
+                @Override
+                public void run() {
+                    Random r = new Random(seed);
+                    for (int i = 0; i < samples; i++) {
+                        int k = r.nextInt(50);
+                        shared.add("k" + k, k, null);
+                    }
+                }
+            };
+            ts[t].start();
+        }
+        for (Thread t : ts) {
+            t.join();
+        }
+        long total = 0;
+        for (Map.Entry<String, LinkedList<Long>> e : shared.copy().entrySet()) {
+            long want = Long.parseLong(e.getKey().substring(1));
+            for (Long v : e.getValue()) {
+                check(v == want, "concurrent sample of " + e.getKey());
+            }
+            total += e.getValue().size();
+        }
+        check(total == (long) threads * samples, "concurrent count " + total);
+
+        // Short lived threads share the arenas, they don't take a slab each
+        final PackedTimers shortLived = new PackedTimers();
+        for (int i = 0; i < 2000; i++) {
+            final int value = i;
+            Thread t = new Thread() {
+                @Override
+                public void run() {
+                    shortLived.add("short", value, null);
+                }
+            };
+            t.start();
+            t.join();
+        }
+        check(shortLived.getChains().get("short").getCount() == 2000, "short lived threads count");
+        check(shortLived.getSlabBytes() <= (long) PackedTimers.ARENAS * PackedTimers.SLAB, "slabs of short lived threads " + shortLived.getSlabBytes());
+        System.out.println("PackedTimersTest OK");
+    }
+}